@@ -0,0 +1,485 @@
+/*
+ * BatchCoordinator.java
+ *
+ * Runs a lattice list across several worker processes and merges their
+ * per-utterance reports into the same output a serial Program2 run prints
+ *
+ * The coordinator listens on a socket and hands out one lattice at a time
+ * to whichever BatchWorker asks next, so a worker stuck on a big lattice
+ * never holds back a queue of small ones.  Lattices are handed out largest
+ * file first.  Reports are printed in lattice list order as soon as every
+ * earlier utterance is done, and the WERs are summed in that same order so
+ * Avg WER matches the serial run bit for bit.
+ *
+ * The coordinator keeps the same checkpoint journal as Program2: lattices
+ * an earlier run finished are not handed out again, and a lattice that
+ * fails is journaled and skipped rather than stopping the run.
+ *
+ * ----------------------------------------------------------------------------
+ *
+ * usage:
+ *
+ * java BatchCoordinator latticeListFilename lmScale outputDir numLocalWorkers [port]
+ *
+ * where the arguments are
+ *
+ *   latticeListFilename    the lattice list, in the same format Program2 reads
+ *   lmScale                the language model weight, as for Program2
+ *   outputDir              the output directory, as for Program2
+ *   numLocalWorkers        how many BatchWorker processes to start on this host
+ *                          (0 only together with a port)
+ *   port                   (optional) listen on this port on every interface so
+ *                          workers on other hosts can join with
+ *                              BATCH_TOKEN=token java BatchWorker coordinatorHost port
+ *                          without it, the coordinator only listens on localhost
+ *
+ * Workers on other hosts must see the lattice, ref and output paths under the
+ * same names, e.g. through a shared filesystem.
+ *
+ * Every worker must present the coordinator's token before it is given any
+ * work.  The token is taken from the BATCH_TOKEN environment variable, or
+ * made up and printed at startup if BATCH_TOKEN is not set; local workers
+ * are given it automatically.
+ *
+ * A worker that does not answer within WORKER_TIMEOUT_MILLIS is dropped and
+ * its lattice handed to another worker, as if the worker had died.  A local
+ * worker is killed first, so it cannot go on writing the lattice's output
+ * files while the next worker writes them too; a hung worker on another
+ * host is only dropped and should be stopped by hand.  Local
+ * workers that die are restarted, but if they keep dying without any job
+ * finishing in between (e.g. a broken classpath) the coordinator stops
+ * restarting them.
+ *
+*/
+
+public class BatchCoordinator {
+    private static final int MAX_ATTEMPTS = 2; // Workers a lattice may crash before we give up
+    private static final int MAX_RELAUNCHES = 3; // Restarts per local worker without progress
+    private static final int WORKER_TIMEOUT_MILLIS = 10 * 60 * 1000; // Longest wait for a worker's answer
+
+    private String[] latticeFilenames;         // Lattice file for each job, in list order
+    private String[] refFilenames;             // Reference file for each job, in list order
+    private double lmScale;                    // Sent to every worker on connect
+    private String outputDir;                  // Sent to every worker on connect
+    private String token;                      // Workers must send this on connect
+    private Checkpoint checkpoint;             // Journal of finished and failed jobs
+
+    private UtteranceResult[] results;         // Result of each finished job, null if it failed
+    private byte[][] reports;                  // Printed report of each finished job, null until done
+    private boolean[] completed;               // Whether each job has a result
+    private int[] attempts;                    // Number of times each job has been lost with a worker
+    private java.util.ArrayDeque<Integer> pending; // Jobs not yet handed out (or handed back)
+    private int numCompleted;                  // Number of jobs with a report
+    private java.util.HashMap<Long, Process> localWorkers = new java.util.HashMap<Long, Process>(); // By pid
+
+    // Constructor
+
+    // BatchCoordinator
+    // Preconditions:
+    //     - latticeFilenames and refFilenames hold the lattice list, in order
+    //     - lmScale and outputDir are the values to pass to Program2.processUtterance
+    //     - checkpoint is the journal for outputDir and lmScale
+    //     - token is the secret every worker must present
+    // Post-conditions
+    //     - Jobs in the journal are complete, with their restored report
+    //     - Every other job is pending, largest lattice file first
+    public BatchCoordinator(String[] latticeFilenames, String[] refFilenames, double lmScale, String outputDir,
+                            Checkpoint checkpoint, String token) {
+        this.latticeFilenames = latticeFilenames;
+        this.refFilenames = refFilenames;
+        this.lmScale = lmScale;
+        this.outputDir = outputDir;
+        this.token = token;
+        this.checkpoint = checkpoint;
+        this.results = new UtteranceResult[latticeFilenames.length];
+        this.reports = new byte[latticeFilenames.length][];
+        this.completed = new boolean[latticeFilenames.length];
+        this.attempts = new int[latticeFilenames.length];
+
+        java.util.ArrayList<Integer> order = new java.util.ArrayList<Integer>();
+        final long[] sizes = new long[latticeFilenames.length];
+        for( int i=0; i<latticeFilenames.length; i++ ) {
+            UtteranceResult restored = checkpoint.getCompleted(latticeFilenames[i], refFilenames[i]);
+            if( restored != null ) {
+                results[i] = restored;
+                reports[i] = Program2.restoredReport(restored).getBytes();
+                completed[i] = true;
+                numCompleted++;
+            } else if( checkpoint.hasCrashed(latticeFilenames[i]) ) {
+                System.err.println("Error: Skipping " + latticeFilenames[i] + ": it was left unfinished by earlier runs");
+                reports[i] = new byte[0];
+                completed[i] = true;
+                numCompleted++;
+            } else {
+                order.add(i);
+                sizes[i] = new java.io.File(latticeFilenames[i]).length();
+            }
+        }
+        java.util.Collections.sort(order, new java.util.Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(sizes[b], sizes[a]);
+            }
+        });
+        this.pending = new java.util.ArrayDeque<Integer>(order);
+    }
+
+    public static void main(String[] args) {
+
+        // Check and load arguments
+        if( args.length != 4 && args.length != 5 ) {
+            System.err.println("Error: Wrong number of arguments.");
+            System.exit(2);
+        }
+
+        String latticeListFilename = args[0];
+        double lmScale = Double.parseDouble(args[1]);
+        String outputDir = args[2];
+        int numLocalWorkers = Integer.parseInt(args[3]);
+        if( numLocalWorkers < 0 || (numLocalWorkers == 0 && args.length == 4) ) {
+            // Without a port only local workers can connect
+            System.err.println("Error: Need at least one local worker, or a port for remote workers.");
+            System.exit(2);
+        }
+
+        // Read through latticeListFilename
+        java.util.Scanner input = null;
+        try {
+            input = new java.util.Scanner(new java.io.File(latticeListFilename));
+        } catch( java.io.FileNotFoundException e ) {
+            System.err.println("Error: Unable to open file " + latticeListFilename);
+            System.exit(1);
+        }
+        java.util.ArrayList<String> latticeFilenames = new java.util.ArrayList<String>();
+        java.util.ArrayList<String> refFilenames = new java.util.ArrayList<String>();
+        while( input.hasNext() ) {
+            latticeFilenames.add(input.next());
+            refFilenames.add(input.next());
+        }
+
+        java.net.ServerSocket server = null;
+        try {
+            if( args.length == 5 ) {
+                server = new java.net.ServerSocket(Integer.parseInt(args[4]));
+            } else {
+                server = new java.net.ServerSocket(0, 50, java.net.InetAddress.getLoopbackAddress());
+            }
+        } catch( java.io.IOException e ) {
+            System.err.println("Error: Unable to listen for workers: " + e.getMessage());
+            System.exit(1);
+        }
+        System.err.println("Listening for workers on port " + server.getLocalPort());
+
+        String token = System.getenv("BATCH_TOKEN");
+        if( token == null || token.isEmpty() ) {
+            byte[] secret = new byte[16];
+            new java.security.SecureRandom().nextBytes(secret);
+            token = new java.math.BigInteger(1, secret).toString(16);
+            if( args.length == 5 ) {
+                System.err.println("Workers must be started with BATCH_TOKEN=" + token);
+            }
+        }
+
+        Checkpoint checkpoint = new Checkpoint(outputDir, lmScale);
+        BatchCoordinator coordinator = new BatchCoordinator(
+            latticeFilenames.toArray(new String[0]), refFilenames.toArray(new String[0]), lmScale, outputDir, checkpoint,
+            token);
+        coordinator.run(server, numLocalWorkers);
+        checkpoint.retire();
+
+        return;
+    }
+
+    // run
+    // Preconditions:
+    //     - server is listening for workers
+    //     - numLocalWorkers is the number of BatchWorker processes to keep
+    //       running on this host (0 means wait for remote workers only, in
+    //       which case server must accept connections from other hosts)
+    // Post-conditions
+    //     - Every job's report has been printed in list order, followed by
+    //       the Avg WER line, exactly as Program2 prints them
+    //     - Failed jobs, including any that killed MAX_ATTEMPTS workers,
+    //       are left out of Avg WER, as in Program2
+    //     - If the local workers keep dying before any job finishes and no
+    //       other worker can join, an error is printed and the program exits
+    //       with status 1
+    public void run(java.net.ServerSocket server, int numLocalWorkers) {
+        startAcceptThread(server);
+
+        Process[] workers = new Process[numLocalWorkers];
+        for( int i=0; i<workers.length; i++ ) {
+            workers[i] = launchWorker(server.getLocalPort());
+        }
+
+        double totalWER = 0.0;
+        int numFiles = 0;
+        int numPrinted = 0;
+        int relaunches = 0;                    // Since the last job completed
+        int lastCompleted = numCompleted;
+        boolean remoteAllowed = !server.getInetAddress().isLoopbackAddress();
+        synchronized( this ) {
+            while( numPrinted < reports.length ) {
+                // Print every report whose predecessors have all been printed
+                while( numPrinted < reports.length && reports[numPrinted] != null ) {
+                    System.out.write(reports[numPrinted], 0, reports[numPrinted].length);
+                    if( results[numPrinted] != null ) {
+                        numFiles++;
+                        totalWER += results[numPrinted].getWER();
+                    }
+                    reports[numPrinted] = null;
+                    numPrinted++;
+                }
+                System.out.flush();
+                if( numPrinted == reports.length ) {
+                    break;
+                }
+
+                // Replace local workers that died (e.g. on a bad lattice),
+                // unless they die again and again with nothing getting done
+                if( numCompleted != lastCompleted ) {
+                    lastCompleted = numCompleted;
+                    relaunches = 0;
+                }
+                boolean anyAlive = false;
+                for( int i=0; i<workers.length; i++ ) {
+                    if( !workers[i].isAlive() && relaunches < MAX_RELAUNCHES * workers.length ) {
+                        workers[i] = launchWorker(server.getLocalPort());
+                        relaunches++;
+                        if( relaunches == MAX_RELAUNCHES * workers.length ) {
+                            System.err.println("Error: Local workers keep dying without finishing a job;"
+                                               + " not starting any more");
+                        }
+                    }
+                    anyAlive = anyAlive || workers[i].isAlive();
+                }
+                if( workers.length > 0 && !anyAlive && !remoteAllowed
+                    && relaunches >= MAX_RELAUNCHES * workers.length ) {
+                    System.err.println("Error: No workers left");
+                    System.exit(1);
+                }
+
+                try {
+                    wait(500);
+                } catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        System.out.println("Avg WER = " + totalWER/numFiles);
+
+        // Idle workers are told to stop as soon as the last job completes
+        for( Process worker : workers ) {
+            try {
+                worker.waitFor(5, java.util.concurrent.TimeUnit.SECONDS);
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            server.close();
+        } catch( java.io.IOException e ) {
+            // Nothing left to do with the socket
+        }
+        return;
+    }
+
+    // PRIVATE HELPER FUNCTIONS
+
+    // nextJob
+    // Blocks until a job is pending or there is nothing left to hand out
+    // Returns the job index, or -1 if the worker should stop
+    private synchronized int nextJob() throws InterruptedException {
+        while( pending.isEmpty() && numCompleted < reports.length ) {
+            wait();
+        }
+        if( pending.isEmpty() ) {
+            return -1;
+        }
+        return pending.removeFirst();
+    }
+
+    // completeJob
+    // Stores and journals a worker's result (null with a failure message if the
+    // lattice could not be processed)
+    private synchronized void completeJob(int job, UtteranceResult result, String failure, byte[] report) {
+        if( !completed[job] ) {
+            if( result != null ) {
+                checkpoint.recordCompleted(latticeFilenames[job], refFilenames[job], result);
+            } else {
+                System.err.println("Error: Skipping " + latticeFilenames[job] + ": " + failure);
+                checkpoint.recordFailure(latticeFilenames[job], failure);
+            }
+            results[job] = result;
+            reports[job] = report;
+            completed[job] = true;
+            numCompleted++;
+        }
+        notifyAll();
+    }
+
+    // failJob
+    // Hands a job back after its worker was lost, or after MAX_ATTEMPTS
+    // workers journals it as failed and moves on
+    private synchronized void failJob(int job) {
+        attempts[job]++;
+        if( attempts[job] >= MAX_ATTEMPTS ) {
+            completeJob(job, null, "lost " + MAX_ATTEMPTS + " workers", new byte[0]);
+        } else {
+            pending.addFirst(job);
+            notifyAll();
+        }
+    }
+
+    // startAcceptThread
+    // Accepts worker connections in the background, one serving thread each
+    private void startAcceptThread(final java.net.ServerSocket server) {
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                while( !server.isClosed() ) {
+                    try {
+                        final java.net.Socket socket = server.accept();
+                        Thread connection = new Thread(new Runnable() {
+                            public void run() {
+                                serveWorker(socket);
+                            }
+                        });
+                        connection.setDaemon(true);
+                        connection.start();
+                    } catch( java.io.IOException e ) {
+                        // The server socket was closed
+                    }
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // serveWorker
+    // Feeds jobs to one connected worker until there are none left, handing
+    // its job back if it hangs up or takes longer than WORKER_TIMEOUT_MILLIS
+    // Protocol (java.io.DataOutputStream encoding):
+    //     worker -> coordinator on connect:   token, process id
+    //     coordinator -> worker on connect:   whether the token matched,
+    //                                         lmScale, outputDir (if it did)
+    //     coordinator -> worker for each job: job index, latticeFilename, refFilename
+    //                                         (job index -1 means stop)
+    //     worker -> coordinator per job:      job index, succeeded,
+    //                                         utteranceID, WER, numPaths, density (if succeeded)
+    //                                         failure message (if not),
+    //                                         report length, report bytes
+    private void serveWorker(java.net.Socket socket) {
+        int job = -1;
+        long pid = -1;
+        try {
+            socket.setSoTimeout(WORKER_TIMEOUT_MILLIS);
+            java.io.DataInputStream in = new java.io.DataInputStream(
+                new java.io.BufferedInputStream(socket.getInputStream()));
+            java.io.DataOutputStream out = new java.io.DataOutputStream(
+                new java.io.BufferedOutputStream(socket.getOutputStream()));
+            boolean accepted = java.security.MessageDigest.isEqual(in.readUTF().getBytes("UTF-8"),
+                                                                  token.getBytes("UTF-8"));
+            pid = in.readLong();
+            out.writeBoolean(accepted);
+            if( !accepted ) {
+                out.flush();
+                System.err.println("Warning: Rejected a worker from " + socket.getInetAddress() + " with the wrong token");
+                return;
+            }
+            out.writeDouble(lmScale);
+            out.writeUTF(outputDir);
+            while( true ) {
+                job = nextJob();
+                out.writeInt(job);
+                if( job < 0 ) {
+                    out.flush();
+                    break;
+                }
+                out.writeUTF(latticeFilenames[job]);
+                out.writeUTF(refFilenames[job]);
+                out.flush();
+
+                int finished = in.readInt();
+                UtteranceResult result = null;
+                String failure = null;
+                if( in.readBoolean() ) {
+                    String utteranceID = in.readUTF();
+                    double WER = in.readDouble();
+                    java.math.BigInteger numPaths = new java.math.BigInteger(in.readUTF());
+                    result = new UtteranceResult(utteranceID, WER, numPaths, in.readDouble());
+                } else {
+                    failure = in.readUTF();
+                }
+                byte[] report = new byte[in.readInt()];
+                in.readFully(report);
+                if( finished != job ) {
+                    throw new java.io.IOException("Worker answered job " + finished + " for job " + job);
+                }
+                completeJob(job, result, failure, report);
+                job = -1;
+            }
+        } catch( java.net.SocketTimeoutException e ) {
+            // The worker hung; stop it before its job goes to another worker
+            stopLocalWorker(socket, pid);
+            if( job >= 0 ) {
+                failJob(job);
+            }
+        } catch( java.io.IOException e ) {
+            if( job >= 0 ) {
+                failJob(job);
+            }
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                socket.close();
+            } catch( java.io.IOException e ) {
+                // Already closed
+            }
+        }
+    }
+
+    // stopLocalWorker
+    // Kills the local worker process with the given pid and waits for it to
+    // exit; does nothing for a worker on another host
+    private void stopLocalWorker(java.net.Socket socket, long pid) {
+        Process worker;
+        synchronized( this ) {
+            worker = localWorkers.remove(pid);
+        }
+        if( worker == null || !socket.getInetAddress().isLoopbackAddress() ) {
+            return;
+        }
+        System.err.println("Error: Worker " + pid + " stopped answering; killing it");
+        worker.destroyForcibly();
+        try {
+            worker.waitFor();
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // launchWorker
+    // Starts a BatchWorker process on this host, with this JVM, classpath and token
+    private Process launchWorker(int port) {
+        String javaCommand = System.getProperty("java.home") + java.io.File.separator + "bin" + java.io.File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(javaCommand, "-cp", System.getProperty("java.class.path"),
+                                                    "BatchWorker", "127.0.0.1", String.valueOf(port));
+        builder.environment().put("BATCH_TOKEN", token);
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process worker = null;
+        try {
+            worker = builder.start();
+        } catch( java.io.IOException e ) {
+            System.err.println("Error: Unable to start worker: " + e.getMessage());
+            System.exit(1);
+        }
+        synchronized( this ) {
+            localWorkers.put(worker.pid(), worker);
+        }
+        return worker;
+    }
+}
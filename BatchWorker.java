@@ -0,0 +1,112 @@
+/*
+ * BatchWorker.java
+ *
+ * A worker process for BatchCoordinator
+ *
+ * Connects to the coordinator, then repeatedly asks for one line of the
+ * lattice list, runs it through Program2.processUtterance and sends back
+ * the utterance's result (or why it failed) together with everything
+ * processUtterance printed.  Output files are written straight to the
+ * output directory, as in a serial run.
+ *
+ * ----------------------------------------------------------------------------
+ *
+ * usage:
+ *
+ * BATCH_TOKEN=token java BatchWorker coordinatorHost port
+ *
+ * BatchCoordinator starts its local workers itself; start workers by hand
+ * only on other hosts that share the coordinator's filesystem.  The token
+ * is the one the coordinator printed (or was given) when it started.
+ *
+*/
+
+public class BatchWorker {
+
+    public static void main(String[] args) {
+
+        // Check and load arguments
+        if( args.length != 2 ) {
+            System.err.println("Error: Wrong number of arguments.");
+            System.exit(2);
+        }
+
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        String token = System.getenv("BATCH_TOKEN");
+        if( token == null ) {
+            System.err.println("Error: BATCH_TOKEN is not set");
+            System.exit(2);
+        }
+
+        java.net.Socket socket = null;
+        try {
+            socket = new java.net.Socket(host, port);
+        } catch( java.io.IOException e ) {
+            System.err.println("Error: Unable to connect to coordinator at " + host + ":" + port);
+            System.exit(1);
+        }
+
+        java.io.PrintStream console = System.out;
+        try {
+            java.io.DataInputStream in = new java.io.DataInputStream(
+                new java.io.BufferedInputStream(socket.getInputStream()));
+            java.io.DataOutputStream out = new java.io.DataOutputStream(
+                new java.io.BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(token);
+            out.writeLong(ProcessHandle.current().pid());
+            out.flush();
+            if( !in.readBoolean() ) {
+                System.err.println("Error: Coordinator at " + host + ":" + port + " rejected BATCH_TOKEN");
+                System.exit(1);
+            }
+            double lmScale = in.readDouble();
+            String outputDir = in.readUTF();
+
+            while( true ) {
+                int job = in.readInt();
+                if( job < 0 ) {
+                    break;
+                }
+                String latticeFilename = in.readUTF();
+                String refFilename = in.readUTF();
+
+                // Capture the report that Program2 would have printed
+                java.io.ByteArrayOutputStream report = new java.io.ByteArrayOutputStream();
+                System.setOut(new java.io.PrintStream(report, true));
+                UtteranceResult result = null;
+                String failure = null;
+                try {
+                    result = Program2.processUtterance(latticeFilename, refFilename, lmScale, outputDir);
+                } catch( java.io.FileNotFoundException | RuntimeException e ) {
+                    failure = e.toString();
+                } finally {
+                    System.out.flush();
+                    System.setOut(console);
+                }
+
+                out.writeInt(job);
+                out.writeBoolean(result != null);
+                if( result != null ) {
+                    out.writeUTF(result.getUtteranceID());
+                    out.writeDouble(result.getWER());
+                    out.writeUTF(result.getNumPaths().toString());
+                    out.writeDouble(result.getDensity());
+                } else {
+                    out.writeUTF(failure);
+                }
+                out.writeInt(report.size());
+                report.writeTo(out);
+                out.flush();
+            }
+            socket.close();
+        } catch( java.io.EOFException e ) {
+            // The coordinator finished and hung up
+        } catch( java.io.IOException e ) {
+            System.err.println("Error: Lost connection to coordinator: " + e.getMessage());
+            System.exit(1);
+        }
+
+        return;
+    }
+}
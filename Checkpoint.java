@@ -0,0 +1,299 @@
+/*
+ * Checkpoint.java
+ *
+ * Defines a new "Checkpoint" type, a journal in the output directory that
+ * lets an interrupted batch run pick up where it stopped
+ *
+ * The journal is a plain text file with one record per line:
+ *
+ *   lmScale <lmScale>
+ *   start <latticeFilename>
+ *   done <latticeFilename> <stamp> <utteranceID> <WER> <numPaths> <density>
+ *   fail <latticeFilename> <message>
+ *
+ * A start record is written before a lattice is processed.  A lattice that
+ * was started but never finished was running when the JVM went down, which
+ * may have been its fault (an exit, a StackOverflowError, running out of
+ * memory) or not (a kill, a Ctrl-C, a reboot), so it is tried again.  Only
+ * a lattice left unfinished by MAX_UNFINISHED runs in a row is given a fail
+ * record saying so and skipped from then on, so it cannot block every
+ * restart.  Other failures are tried again on the next run.
+ *
+ * The stamp of a done record is the size and modification time of the
+ * lattice file and then of the ref file, four numbers in all; if either file
+ * has changed since, the lattice is processed again.
+ *
+ * The journal only lives as long as one run: once the run prints its Avg
+ * WER it is deleted, so the next run over the same output directory starts
+ * fresh.  If it holds any fail record it is renamed to FAILED_FILENAME
+ * instead, replacing any earlier one, so the failures can still be looked
+ * up.  Delete checkpoint.journal by hand to start an interrupted run over.
+ *
+ * The lmScale line comes first; a journal written with a different lmScale
+ * is discarded.  Every record is flushed to the operating system when it is
+ * written, so a killed JVM loses nothing, and the file is fsync'd every
+ * SYNC_BATCH records and on close, so a machine crash loses at most one
+ * batch.  A line without its trailing newline was torn by a crash and is
+ * dropped on open.
+ *
+ */
+
+public class Checkpoint {
+    public static final String JOURNAL_FILENAME = "checkpoint.journal";
+    public static final String FAILED_FILENAME = "checkpoint.journal.failed";
+    private static final int MAX_UNFINISHED = 2; // Runs a lattice may be left unfinished by
+    private static final int SYNC_BATCH = 16;   // Records between fsyncs
+    private static final String CRASHED = "crashed: left unfinished by " + MAX_UNFINISHED + " runs";
+
+    private java.util.HashMap<String, UtteranceResult> completed; // Finished lattices, by filename
+    private java.util.HashMap<String, String> stamps; // Stamp of each finished lattice, by filename
+    private java.util.HashSet<String> crashed;  // Lattices that stopped MAX_UNFINISHED runs
+    private boolean failures;                   // Whether the journal holds a fail record
+    private java.io.File file;                  // The journal file
+    private java.io.FileOutputStream journal;   // Open for appending
+    private int unsynced;                       // Records written since the last fsync
+
+    // Constructor
+
+    // Checkpoint
+    // Preconditions:
+    //     - outputDir is the run's (existing) output directory
+    //     - lmScale is the run's lmScale
+    // Post-conditions
+    //     - Records from an earlier run with the same lmScale are loaded
+    //     - Lattices left unfinished by the last MAX_UNFINISHED runs are
+    //       journaled as failed and reported by hasCrashed; lattices left
+    //       unfinished by fewer runs are to be processed again
+    //     - The journal is open for appending new records
+    // Notes:
+    //     - If the journal cannot be read or written, prints an error and
+    //       exits with status 1
+    public Checkpoint(String outputDir, double lmScale) {
+        this.completed = new java.util.HashMap<String, UtteranceResult>();
+        this.stamps = new java.util.HashMap<String, String>();
+        this.crashed = new java.util.HashSet<String>();
+        java.util.LinkedHashMap<String, Integer> unfinished = new java.util.LinkedHashMap<String, Integer>();
+
+        this.file = new java.io.File(outputDir, JOURNAL_FILENAME);
+        String header = "lmScale " + lmScale;
+        try {
+            long validLength = 0;
+            if( file.exists() ) {
+                validLength = load(file, header, unfinished);
+            }
+
+            // Drop a torn last line, or the whole journal if it belongs to another run
+            java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "rw");
+            raf.setLength(validLength);
+            raf.close();
+
+            this.journal = new java.io.FileOutputStream(file, true);
+            if( validLength == 0 ) {
+                append(header);
+            }
+
+            // A lattice running whenever the run died is taken to be what killed it
+            for( java.util.Map.Entry<String, Integer> entry : unfinished.entrySet() ) {
+                if( entry.getValue() >= MAX_UNFINISHED ) {
+                    append("fail " + entry.getKey() + " " + CRASHED);
+                    crashed.add(entry.getKey());
+                    failures = true;
+                } else {
+                    System.err.println("Note: Retrying " + entry.getKey() + ", which an earlier run did not finish");
+                }
+            }
+        } catch( java.io.IOException e ) {
+            fail(e);
+        }
+    }
+
+    // Accessors
+
+    // hasCrashed
+    // Preconditions:
+    //     - latticeFilename is a lattice file named in the lattice list
+    // Post-conditions
+    //     - Returns true if processing latticeFilename was left unfinished by
+    //       MAX_UNFINISHED runs in a row; such a lattice should be skipped
+    public synchronized boolean hasCrashed(String latticeFilename) {
+        return crashed.contains(latticeFilename);
+    }
+
+    // getCompleted
+    // Preconditions:
+    //     - latticeFilename and refFilename name one line of the lattice list
+    // Post-conditions
+    //     - Returns the journaled result for latticeFilename, or null if it
+    //       has not completed yet or either file has changed since
+    public synchronized UtteranceResult getCompleted(String latticeFilename, String refFilename) {
+        UtteranceResult result = completed.get(latticeFilename);
+        if( result == null || !stamps.get(latticeFilename).equals(stamp(latticeFilename, refFilename)) ) {
+            return null;
+        }
+        return result;
+    }
+
+    // Mutators
+
+    // recordStarted
+    // Preconditions:
+    //     - latticeFilename is about to be processed in this JVM
+    // Post-conditions
+    //     - A start record is written to the journal, so that if processing
+    //       kills the JVM the next run knows which lattice was running
+    public synchronized void recordStarted(String latticeFilename) {
+        try {
+            append("start " + latticeFilename);
+        } catch( java.io.IOException e ) {
+            fail(e);
+        }
+    }
+
+    // recordCompleted
+    // Preconditions:
+    //     - result describes latticeFilename, which has just been decoded
+    //       against refFilename
+    // Post-conditions
+    //     - A done record is written to the journal
+    public synchronized void recordCompleted(String latticeFilename, String refFilename, UtteranceResult result) {
+        String stamp = stamp(latticeFilename, refFilename);
+        completed.put(latticeFilename, result);
+        stamps.put(latticeFilename, stamp);
+        try {
+            append("done " + latticeFilename + " " + stamp + " " + result.getUtteranceID() + " " + result.getWER()
+                   + " " + result.getNumPaths() + " " + result.getDensity());
+        } catch( java.io.IOException e ) {
+            fail(e);
+        }
+    }
+
+    // recordFailure
+    // Preconditions:
+    //     - message says why latticeFilename could not be processed
+    // Post-conditions
+    //     - A fail record is written to the journal; the lattice will be
+    //       tried again on the next run
+    public synchronized void recordFailure(String latticeFilename, String message) {
+        failures = true;
+        try {
+            append("fail " + latticeFilename + " " + message.replace('\n', ' '));
+        } catch( java.io.IOException e ) {
+            fail(e);
+        }
+    }
+
+    // retire
+    // Preconditions:
+    //     - The run has finished and printed its Avg WER
+    // Post-conditions
+    //     - The journal is closed and deleted, or renamed to FAILED_FILENAME if
+    //       it holds a fail record, so the next run starts fresh
+    public synchronized void retire() {
+        try {
+            journal.close();
+        } catch( java.io.IOException e ) {
+            fail(e);
+        }
+        if( failures ) {
+            java.io.File failed = new java.io.File(file.getParentFile(), FAILED_FILENAME);
+            try {
+                java.nio.file.Files.move(file.toPath(), failed.toPath(),
+                                         java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                System.err.println("Note: Failed lattices are listed in " + failed);
+            } catch( java.io.IOException e ) {
+                System.err.println("Warning: Unable to rename " + file + " to " + failed
+                                   + "; move it aside before the next run");
+            }
+        } else if( !file.delete() ) {
+            System.err.println("Warning: Unable to delete " + file + "; delete it before the next run");
+        }
+    }
+
+    // PRIVATE HELPER FUNCTIONS
+
+    // load
+    // Reads the records of an existing journal, counting in unfinished the
+    // start records of each lattice since its last done or fail record
+    // Returns the length of its complete, matching prefix (0 if the header differs)
+    private long load(java.io.File file, String header, java.util.LinkedHashMap<String, Integer> unfinished)
+            throws java.io.IOException {
+        byte[] bytes = java.nio.file.Files.readAllBytes(file.toPath());
+        int end = bytes.length;
+        while( end > 0 && bytes[end-1] != '\n' ) {
+            end--;
+        }
+        String[] lines = new String(bytes, 0, end, java.nio.charset.StandardCharsets.UTF_8).split("\n");
+        if( end == 0 || !lines[0].equals(header) ) {
+            if( end > 0 ) {
+                System.err.println("Note: Discarding " + file + " from a run with " + lines[0]);
+            }
+            return 0;
+        }
+
+        for( int i=1; i<lines.length; i++ ) {
+            String[] fields = lines[i].split(" ");
+            if( fields.length < 2 ) {
+                continue;
+            }
+            if( fields[0].equals("start") ) {
+                Integer starts = unfinished.get(fields[1]);
+                unfinished.put(fields[1], starts == null ? 1 : starts + 1);
+                continue;
+            }
+            unfinished.remove(fields[1]);
+            if( fields[0].equals("fail") ) {
+                failures = true;
+                // Only crashes are remembered; other failures are retried
+                if( lines[i].endsWith(" " + CRASHED) ) {
+                    crashed.add(fields[1]);
+                } else {
+                    crashed.remove(fields[1]);
+                }
+                continue;
+            }
+            if( fields.length != 10 || !fields[0].equals("done") ) {
+                continue;
+            }
+            crashed.remove(fields[1]);
+            try {
+                completed.put(fields[1], new UtteranceResult(fields[6], Double.parseDouble(fields[7]),
+                                                             new java.math.BigInteger(fields[8]),
+                                                             Double.parseDouble(fields[9])));
+                stamps.put(fields[1], fields[2] + " " + fields[3] + " " + fields[4] + " " + fields[5]);
+            } catch( NumberFormatException e ) {
+                // Not a record we wrote; ignore it
+            }
+        }
+
+        return end;
+    }
+
+    // stamp
+    // Returns the size and modification time of the lattice and ref files,
+    // which change if either file is rewritten
+    private static String stamp(String latticeFilename, String refFilename) {
+        java.io.File lattice = new java.io.File(latticeFilename);
+        java.io.File ref = new java.io.File(refFilename);
+        return lattice.length() + " " + lattice.lastModified() + " " + ref.length() + " " + ref.lastModified();
+    }
+
+    // append
+    // Writes one record, fsync'ing every SYNC_BATCH records
+    private void append(String record) throws java.io.IOException {
+        journal.write((record + "\n").getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        journal.flush();
+        unsynced++;
+        if( unsynced >= SYNC_BATCH ) {
+            journal.getFD().sync();
+            unsynced = 0;
+        }
+    }
+
+    // fail
+    // Reports a journal I/O error and exits: without the journal a restart
+    // would silently redo (or skip) the wrong work
+    private void fail(java.io.IOException e) {
+        System.err.println("Error: Unable to update checkpoint journal: " + e.getMessage());
+        System.exit(1);
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * ConfusionNetwork.java
+ *
+ * Defines a new "ConfusionNetwork" type: a lattice collapsed into a
+ * sequence of time-ordered slots, each holding competing words and their
+ * posterior probabilities.  Picking the most probable entry of every slot
+ * (consensus decoding) minimizes the expected word error, where Viterbi
+ * decoding minimizes the expected sentence error.
+ *
+ * Each slot also holds a "-silence-" entry for the probability that no
+ * word is spoken there.  Hypothesis.addWord already skips -silence-, so a
+ * slot won by it adds nothing to the hypothesis.
+ *
+ * Note that the ConfusionNetwork type is immutable: after the fields are
+ * initialized in the constructor, they cannot be modified.
+ *
+ */
+
+public class ConfusionNetwork {
+    private static final String EPSILON = "-silence-"; // Entry for "no word here"
+
+    private double[] slotStartTimes;     // Start time of each slot
+    private double[] slotEndTimes;       // End time of each slot
+    private String[][] slotWords;        // Each slot's words, most probable first
+    private double[][] slotPosteriors;   // Posterior of each entry in slotWords
+
+    // Constructor
+
+    // ConfusionNetwork
+    // Preconditions:
+    //     - slotBoundaries holds the ascending, distinct node times along the
+    //       lattice's best path; consecutive pairs bound its words
+    //     - labels, startTimes, endTimes and posteriors describe the lattice's
+    //       word (non -silence-) edges, one array element per edge
+    // Post-conditions
+    //     - Each edge is put in the best-path slot its time span overlaps most
+    //       (the slot holding its midpoint, if it has zero length)
+    //     - Edges with the same word in a slot are merged, summing posteriors
+    //     - A word that does not compete with the more probable words of its
+    //       slot (they overlap for less than half the shorter one) is taken
+    //       to follow or precede them on its paths instead, and moves to an
+    //       extra slot just after or before
+    //     - Each slot gets a -silence- entry holding the remaining probability
+    // Notes:
+    //     - The best path's words act as pivots, as in pivot-based confusion
+    //       network construction: each edge costs a binary search over the
+    //       slot boundaries, and only the words within a slot are compared.
+    //       The extra slots keep two words of one path out of the same slot,
+    //       where all but one of them would be lost
+    ConfusionNetwork(double[] slotBoundaries, String[] labels, double[] startTimes, double[] endTimes,
+                     double[] posteriors) {
+        // Each word of a pivot slot: its summed posterior, and its start and
+        // end times weighted by posterior
+        int numPivots = Math.max(slotBoundaries.length - 1, 0);
+        java.util.ArrayList<java.util.LinkedHashMap<String, double[]>> pivots =
+            new java.util.ArrayList<java.util.LinkedHashMap<String, double[]>>();
+        for( int s=0; s<numPivots; s++ ) {
+            pivots.add(new java.util.LinkedHashMap<String, double[]>());
+        }
+        for( int a=0; a<labels.length && numPivots > 0; a++ ) {
+            int best = slotAt(slotBoundaries, (startTimes[a] + endTimes[a]) / 2);
+            double bestOverlap = 0;
+            for( int s=slotAt(slotBoundaries, startTimes[a]); s<numPivots && slotBoundaries[s] < endTimes[a]; s++ ) {
+                double overlap = Math.min(endTimes[a], slotBoundaries[s+1]) - Math.max(startTimes[a], slotBoundaries[s]);
+                if( overlap > bestOverlap ) {
+                    best = s;
+                    bestOverlap = overlap;
+                }
+            }
+            double[] word = pivots.get(best).get(labels[a]);
+            if( word == null ) {
+                word = new double[3];
+                pivots.get(best).put(labels[a], word);
+            }
+            word[0] += posteriors[a];
+            word[1] += posteriors[a] * startTimes[a];
+            word[2] += posteriors[a] * endTimes[a];
+        }
+
+        // Slot 2p+1 is pivot p; slot 2p holds the words moved out from
+        // between pivots p-1 and p
+        java.util.ArrayList<java.util.HashMap<String, Double>> slots =
+            new java.util.ArrayList<java.util.HashMap<String, Double>>();
+        double[][] spans = new double[2*numPivots+1][];
+        for( int s=0; s<2*numPivots+1; s++ ) {
+            slots.add(new java.util.HashMap<String, Double>());
+            if( s % 2 == 1 ) {
+                spans[s] = new double[] {slotBoundaries[s/2], slotBoundaries[s/2+1]};
+            } else {
+                spans[s] = new double[] {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+            }
+        }
+        for( int p=0; p<numPivots; p++ ) {
+            java.util.ArrayList<java.util.Map.Entry<String, double[]>> words =
+                new java.util.ArrayList<java.util.Map.Entry<String, double[]>>(pivots.get(p).entrySet());
+            java.util.Collections.sort(words, new java.util.Comparator<java.util.Map.Entry<String, double[]>>() {
+                public int compare(java.util.Map.Entry<String, double[]> a, java.util.Map.Entry<String, double[]> b) {
+                    return Double.compare(b.getValue()[0], a.getValue()[0]);
+                }
+            });
+            java.util.ArrayList<double[]> kept = new java.util.ArrayList<double[]>();
+            for( java.util.Map.Entry<String, double[]> entry : words ) {
+                double[] word = entry.getValue();
+                double[] span = new double[] {word[1] / word[0], word[2] / word[0]};
+                boolean competes = true;
+                for( double[] other : kept ) {
+                    competes = competes && competes(span, other);
+                }
+                int s = 2*p+1;
+                if( !competes ) {
+                    // Rejoin the same word in the neighbouring pivot slot, if any
+                    int q = (span[0] + span[1] < kept.get(0)[0] + kept.get(0)[1]) ? p-1 : p+1;
+                    if( q >= 0 && q < numPivots && pivots.get(q).containsKey(entry.getKey()) ) {
+                        s = 2*q+1;
+                    } else {
+                        s = p+q+1;
+                        spans[s][0] = Math.min(spans[s][0], span[0]);
+                        spans[s][1] = Math.max(spans[s][1], span[1]);
+                    }
+                } else {
+                    kept.add(span);
+                }
+                Double sum = slots.get(s).get(entry.getKey());
+                slots.get(s).put(entry.getKey(), (sum == null ? 0.0 : sum) + word[0]);
+            }
+        }
+
+        // Extra slots that nothing moved into are dropped
+        java.util.ArrayList<Integer> used = new java.util.ArrayList<Integer>();
+        for( int s=0; s<slots.size(); s++ ) {
+            if( s % 2 == 1 || !slots.get(s).isEmpty() ) {
+                used.add(s);
+            }
+        }
+        this.slotStartTimes = new double[used.size()];
+        this.slotEndTimes = new double[used.size()];
+        this.slotWords = new String[used.size()][];
+        this.slotPosteriors = new double[used.size()][];
+        for( int u=0; u<used.size(); u++ ) {
+            slotStartTimes[u] = spans[used.get(u)][0];
+            slotEndTimes[u] = spans[used.get(u)][1];
+            fillSlot(u, slots.get(used.get(u)));
+        }
+        return;
+    }
+
+    // Accessors
+
+    // getNumSlots
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the number of slots
+    public int getNumSlots() {
+        return this.slotWords.length;
+    }
+
+    // getSlotStartTime
+    // Preconditions:
+    //     - 0 <= slot < getNumSlots()
+    // Post-conditions
+    //     - Returns the start time of the best-path word slot was built
+    //       around or, for an extra slot, the earliest start of its words
+    public double getSlotStartTime(int slot) {
+        return this.slotStartTimes[slot];
+    }
+
+    // getSlotEndTime
+    // Preconditions:
+    //     - 0 <= slot < getNumSlots()
+    // Post-conditions
+    //     - Returns the end time of the best-path word slot was built
+    //       around or, for an extra slot, the latest end of its words
+    public double getSlotEndTime(int slot) {
+        return this.slotEndTimes[slot];
+    }
+
+    // getSlotWords
+    // Preconditions:
+    //     - 0 <= slot < getNumSlots()
+    // Post-conditions
+    //     - Returns a copy of the slot's entries, most probable first
+    //       ("-silence-" stands for no word)
+    public String[] getSlotWords(int slot) {
+        return this.slotWords[slot].clone();
+    }
+
+    // getSlotPosteriors
+    // Preconditions:
+    //     - 0 <= slot < getNumSlots()
+    // Post-conditions
+    //     - Returns a copy of the posteriors of the slot's entries, in the
+    //       same order as getSlotWords
+    public double[] getSlotPosteriors(int slot) {
+        return this.slotPosteriors[slot].clone();
+    }
+
+    // getConsensusHypothesis
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns a new Hypothesis built from the most probable entry of
+    //       each slot, in time order; each word's score is -ln(posterior)
+    public Hypothesis getConsensusHypothesis() {
+        Hypothesis hypothesis = new Hypothesis();
+        for( int s=0; s<slotWords.length; s++ ) {
+            hypothesis.addWord(slotWords[s][0], -Math.log(slotPosteriors[s][0]));
+        }
+        return hypothesis;
+    }
+
+    // PRIVATE HELPER FUNCTIONS
+
+    // slotAt
+    // Returns the slot whose span holds time, clamped to the first and last slots
+    private static int slotAt(double[] slotBoundaries, double time) {
+        int index = java.util.Arrays.binarySearch(slotBoundaries, time);
+        if( index < 0 ) {
+            index = -index - 2;   // The boundary just before time
+        }
+        return Math.max(0, Math.min(index, slotBoundaries.length - 2));
+    }
+
+    // competes
+    // Returns true if the (start, end) spans a and b overlap for at least
+    // half the shorter of them, so they are alternatives rather than
+    // neighbours on one path
+    private static boolean competes(double[] a, double[] b) {
+        double overlap = Math.min(a[1], b[1]) - Math.max(a[0], b[0]);
+        return overlap >= 0 && 2 * overlap >= Math.min(a[1] - a[0], b[1] - b[0]);
+    }
+
+    // fillSlot
+    // Adds the -silence- entry to a slot's words and stores them, most
+    // probable first
+    private void fillSlot(int s, java.util.HashMap<String, Double> slot) {
+        double total = 0;
+        for( double p : slot.values() ) {
+            total += p;
+        }
+        final java.util.ArrayList<java.util.Map.Entry<String, Double>> entries =
+            new java.util.ArrayList<java.util.Map.Entry<String, Double>>(slot.entrySet());
+        entries.add(new java.util.AbstractMap.SimpleEntry<String, Double>(EPSILON, Math.max(0.0, 1.0 - total)));
+        java.util.Collections.sort(entries, new java.util.Comparator<java.util.Map.Entry<String, Double>>() {
+            public int compare(java.util.Map.Entry<String, Double> a, java.util.Map.Entry<String, Double> b) {
+                return Double.compare(b.getValue(), a.getValue());
+            }
+        });
+
+        slotWords[s] = new String[entries.size()];
+        slotPosteriors[s] = new double[entries.size()];
+        for( int e=0; e<entries.size(); e++ ) {
+            slotWords[s][e] = entries.get(e).getKey();
+            slotPosteriors[s][e] = entries.get(e).getValue();
+        }
+    }
+}
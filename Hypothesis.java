@@ -97,19 +97,16 @@ public class Hypothesis {
     //        the hypothesis and reference word sequences.  Given that, WER
     //          is simply the minimum edit distance divided by the number of words
     //        in the reference sequence
-    public double computeWER(String referenceFilename) {
-        java.util.Scanner input = null;
-        try {
-            input = new java.util.Scanner(new java.io.File(referenceFilename));
-        } catch( java.io.FileNotFoundException e ) {
-            System.out.println("Error: File " + referenceFilename + " not found");
-            System.exit(1);
-        }
-
+    // Notes:
+    //     - Throws java.io.FileNotFoundException if referenceFilename cannot be
+    //       opened, so a batch run can skip the utterance and go on
+    public double computeWER(String referenceFilename) throws java.io.FileNotFoundException {
+        java.util.Scanner input = new java.util.Scanner(new java.io.File(referenceFilename));
         java.util.ArrayList<String> reference = new java.util.ArrayList<String>();
         while( input.hasNext() ) {
             reference.add(input.next());
         }
+        input.close();
         
         double[][] d = new double[words.size()+1][reference.size()+1];
         for( int i=0; i<=words.size(); i++ ) {
@@ -0,0 +1,83 @@
+/*
+ * KeywordHit.java
+ *
+ * Defines a new "KeywordHit" type, which stores one place a word may have
+ * been spoken: the utterance, the word's time span and its posterior
+ * probability
+ *
+ * Note that the KeywordHit type is immutable: after the fields are
+ * initialized in the constructor, they cannot be modified.
+ *
+ */
+
+public class KeywordHit {
+    private String utteranceID;   // The utterance the word occurs in
+    private String word;          // The word
+    private double startTime;     // When the word starts, in seconds
+    private double endTime;       // When the word ends, in seconds
+    private double posterior;     // Posterior probability that the word was spoken here
+
+    // Constructor
+
+    // KeywordHit
+    // Preconditions:
+    //     - startTime <= endTime
+    //     - 0 <= posterior <= 1
+    // Post-conditions
+    //     - The fields are set to the corresponding arguments
+    public KeywordHit(String utteranceID, String word, double startTime, double endTime, double posterior) {
+        this.utteranceID = utteranceID;
+        this.word = word;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.posterior = posterior;
+        return;
+    }
+
+    // Accessors
+
+    // getUtteranceID
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Return's this.utteranceID
+    public String getUtteranceID() {
+        return this.utteranceID;
+    }
+
+    // getWord
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Return's this.word
+    public String getWord() {
+        return this.word;
+    }
+
+    // getStartTime
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Return's this.startTime
+    public double getStartTime() {
+        return this.startTime;
+    }
+
+    // getEndTime
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Return's this.endTime
+    public double getEndTime() {
+        return this.endTime;
+    }
+
+    // getPosterior
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Return's this.posterior
+    public double getPosterior() {
+        return this.posterior;
+    }
+}
@@ -0,0 +1,583 @@
+/*
+ * KeywordIndex.java
+ *
+ * Defines a new "KeywordIndex" type, an on-disk inverted index from words
+ * to the places they may have been spoken across a whole lattice list, so
+ * keyword search never has to open a lattice file
+ *
+ * The index is a directory of segment files, segment-00000.kwi and up.
+ * Building writes a segment that replaces every earlier one; each append
+ * writes one more, holding only utterances the index does not have yet.
+ * A segment is written to a temporary file and renamed into place, and
+ * only then does a build delete the segments it replaces; until they are
+ * gone, opening the index skips every segment before the last replacing
+ * one.  So a crashed build or append leaves either the old index or the
+ * new one.
+ *
+ * Each segment is memory-mapped and laid out as (ints big-endian):
+ *
+ *   header         magic, version, lmScale (a double), numUtterances,
+ *                  numWords, utteranceTable offset, dictionary offset,
+ *                  posteriorScale (a double), 1 if the segment replaces
+ *                  every earlier one (else 0), 4 bytes of padding
+ *   utteranceTable numUtterances x (string offset, string length)
+ *   dictionary     numWords x (string offset, string length, postings
+ *                  offset, number of postings), sorted by word
+ *   strings        the UTF-8 bytes of every utterance ID and word
+ *   postings       for each word, its hits sorted by utterance and start
+ *                  time, each as varints: utterance number minus the last
+ *                  one, start time (minus the last one, within the same
+ *                  utterance) and duration, both in centiseconds, then one
+ *                  byte of quantized -log posterior
+ *
+ * A query binary-searches each segment's dictionary and decodes just that
+ * word's postings.  Hits are those of Lattice.findKeywordHits, so words are
+ * spelled as Hypothesis.addWord spells them: query "going", not "going_to".
+ *
+ * ----------------------------------------------------------------------------
+ *
+ * usage:
+ *
+ * java KeywordIndex build latticeListFilename lmScale indexDir
+ * java KeywordIndex append latticeListFilename lmScale indexDir
+ * java KeywordIndex query indexDir word [maxHits]
+ *
+ * where the arguments are
+ *
+ *   latticeListFilename    the lattice list, in the same format Program2 reads
+ *   lmScale                the language model weight used for the posteriors;
+ *                          append must use the lmScale the index was built with
+ *                          (and the index must have been built with the same
+ *                          Lattice.KEYWORD_POSTERIOR_SCALE)
+ *   indexDir               the directory holding the index's segments
+ *   word                   the word to look up
+ *   maxHits                (optional) print only the best maxHits hits
+ *
+ * query prints one hit per line, most probable first:
+ *
+ *   utteranceID startTime endTime posterior
+ *
+*/
+
+public class KeywordIndex {
+    private static final int MAGIC = 0x4b574931;     // "KWI1"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 48;
+    private static final int UTTERANCE_ENTRY_BYTES = 8;
+    private static final int WORD_ENTRY_BYTES = 16;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".kwi";
+    // -log posterior per step of the quantized posterior byte; 255 steps
+    // reach MIN_POSTERIOR, the least posterior findKeywordHits keeps
+    private static final double LOG_POSTERIOR_STEP = -Math.log(Lattice.MIN_POSTERIOR) / 255;
+
+    private java.nio.MappedByteBuffer[] segments;    // The segments, in the order they were written
+    private int nextSegment;                         // Number the next appended segment gets
+    private double lmScale;                          // lmScale of the posteriors (NaN if empty)
+    private double posteriorScale;                   // posteriorScale of the posteriors (NaN if empty)
+
+    public static void main(String[] args) {
+
+        // Check and load arguments
+        if( args.length < 3 ) {
+            System.err.println("Error: Wrong number of arguments.");
+            System.exit(2);
+        }
+
+        String command = args[0];
+        if( command.equals("query") && (args.length == 3 || args.length == 4) ) {
+            long startNanos = System.nanoTime();
+            KeywordIndex index = new KeywordIndex(args[1]);
+            java.util.ArrayList<KeywordHit> hits = index.query(args[2]);
+            int maxHits = args.length == 4 ? Integer.parseInt(args[3]) : hits.size();
+            for( int h=0; h<hits.size() && h<maxHits; h++ ) {
+                KeywordHit hit = hits.get(h);
+                System.out.printf("%s %.2f %.2f %.4f\n", hit.getUtteranceID(), hit.getStartTime(),
+                                  hit.getEndTime(), hit.getPosterior());
+            }
+            System.err.printf("%d hits for %s in %.1f ms\n", hits.size(), args[2],
+                              (System.nanoTime() - startNanos) / 1e6);
+        } else if( (command.equals("build") || command.equals("append")) && args.length == 4 ) {
+            String latticeListFilename = args[1];
+            double lmScale = Double.parseDouble(args[2]);
+            String indexDir = args[3];
+            new java.io.File(indexDir).mkdirs();
+            if( command.equals("build") ) {
+                build(latticeListFilename, lmScale, indexDir);
+            } else {
+                KeywordIndex index = new KeywordIndex(indexDir);
+                if( index.getNumSegments() > 0 && index.getLmScale() != lmScale ) {
+                    System.err.println("Error: " + indexDir + " was built with lmScale " + index.getLmScale());
+                    System.exit(1);
+                }
+                if( index.getNumSegments() > 0 && index.getPosteriorScale() != Lattice.KEYWORD_POSTERIOR_SCALE ) {
+                    System.err.println("Error: " + indexDir + " was built with posterior scale "
+                                       + index.getPosteriorScale() + ", not " + Lattice.KEYWORD_POSTERIOR_SCALE
+                                       + "; build it again");
+                    System.exit(1);
+                }
+                index.append(latticeListFilename, lmScale, indexDir);
+            }
+        } else {
+            System.err.println("Error: Wrong number of arguments.");
+            System.exit(2);
+        }
+
+        return;
+    }
+
+    // Constructor
+
+    // KeywordIndex
+    // Preconditions:
+    //     - indexDir is an index directory (a missing one is an empty index)
+    // Post-conditions
+    //     - Every segment in indexDir from the last one that replaces the
+    //       ones before it on is memory-mapped; earlier segments are not opened
+    // Notes:
+    //     - If a segment cannot be read, or is not a segment, or its lmScale
+    //       or posteriorScale differs from the others, prints an error and
+    //       exits with status 1
+    public KeywordIndex(String indexDir) {
+        java.util.ArrayList<String> segmentNames = segmentNames(indexDir);
+        this.nextSegment = nextSegmentNumber(segmentNames);
+
+        // Open segments newest first, down to the last one that replaces the rest
+        java.nio.MappedByteBuffer[] mapped = new java.nio.MappedByteBuffer[segmentNames.size()];
+        int first = 0;
+        for( int s=mapped.length-1; s>=0; s-- ) {
+            java.io.File file = new java.io.File(indexDir, segmentNames.get(s));
+            try {
+                java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file.toPath());
+                mapped[s] = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                channel.close();
+            } catch( java.io.IOException e ) {
+                System.err.println("Error: Unable to open index segment " + file + ": " + e.getMessage());
+                System.exit(1);
+            }
+            if( mapped[s].capacity() < HEADER_BYTES || mapped[s].getInt(0) != MAGIC
+                || mapped[s].getInt(4) != VERSION ) {
+                System.err.println("Error: " + file + " is not a keyword index segment (or is from an older version)");
+                System.exit(1);
+            }
+            if( mapped[s].getInt(40) != 0 ) {
+                first = s;
+                break;
+            }
+        }
+
+        this.segments = java.util.Arrays.copyOfRange(mapped, first, mapped.length);
+        this.lmScale = Double.NaN;
+        this.posteriorScale = Double.NaN;
+        for( int s=0; s<segments.length; s++ ) {
+            String name = segmentNames.get(first + s);
+            if( s > 0 && segments[s].getDouble(8) != lmScale ) {
+                System.err.println("Error: " + name + " was built with lmScale " + segments[s].getDouble(8)
+                                   + ", not " + lmScale);
+                System.exit(1);
+            }
+            if( s > 0 && segments[s].getDouble(32) != posteriorScale ) {
+                System.err.println("Error: " + name + " was built with posterior scale " + segments[s].getDouble(32)
+                                   + ", not " + posteriorScale);
+                System.exit(1);
+            }
+            this.lmScale = segments[s].getDouble(8);
+            this.posteriorScale = segments[s].getDouble(32);
+        }
+        return;
+    }
+
+    // Accessors
+
+    // getNumSegments
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the number of segments in the index
+    public int getNumSegments() {
+        return this.segments.length;
+    }
+
+    // getLmScale
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the lmScale the index's posteriors were computed with,
+    //       or Double.NaN if the index is empty
+    public double getLmScale() {
+        return this.lmScale;
+    }
+
+    // getPosteriorScale
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the posteriorScale the index's posteriors were computed
+    //       with, or Double.NaN if the index is empty
+    public double getPosteriorScale() {
+        return this.posteriorScale;
+    }
+
+    // getUtteranceIDs
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the IDs of every utterance in the index
+    public java.util.HashSet<String> getUtteranceIDs() {
+        java.util.HashSet<String> utteranceIDs = new java.util.HashSet<String>();
+        for( java.nio.MappedByteBuffer segment : segments ) {
+            int numUtterances = segment.getInt(16);
+            for( int u=0; u<numUtterances; u++ ) {
+                utteranceIDs.add(utteranceID(segment, u));
+            }
+        }
+        return utteranceIDs;
+    }
+
+    // query
+    // Preconditions:
+    //     - word is a single word (not a multiword or -silence-)
+    // Post-conditions
+    //     - Returns every hit of word in the index, most probable first,
+    //       ties broken by utterance ID and then start time
+    //     - Times are rounded to centiseconds and posteriors to within about
+    //       4% of their value, as the index stores them
+    public java.util.ArrayList<KeywordHit> query(String word) {
+        java.util.ArrayList<KeywordHit> hits = new java.util.ArrayList<KeywordHit>();
+        for( java.nio.MappedByteBuffer segment : segments ) {
+            int entry = findWord(segment, word);
+            if( entry < 0 ) {
+                continue;
+            }
+
+            int[] position = { segment.getInt(entry + 8) };
+            int numPostings = segment.getInt(entry + 12);
+            int utterance = 0, start = 0;
+            for( int p=0; p<numPostings; p++ ) {
+                int utteranceDelta = readVarint(segment, position);
+                if( utteranceDelta > 0 || p == 0 ) {
+                    start = 0;
+                }
+                utterance += utteranceDelta;
+                start += readVarint(segment, position);
+                int duration = readVarint(segment, position);
+                int code = segment.get(position[0]++) & 0xff;
+                hits.add(new KeywordHit(utteranceID(segment, utterance), word, start / 100.0,
+                                        (start + duration) / 100.0, Math.exp(-code * LOG_POSTERIOR_STEP)));
+            }
+        }
+
+        java.util.Collections.sort(hits, new java.util.Comparator<KeywordHit>() {
+            public int compare(KeywordHit a, KeywordHit b) {
+                if( a.getPosterior() != b.getPosterior() ) {
+                    return Double.compare(b.getPosterior(), a.getPosterior());
+                }
+                if( !a.getUtteranceID().equals(b.getUtteranceID()) ) {
+                    return a.getUtteranceID().compareTo(b.getUtteranceID());
+                }
+                return Double.compare(a.getStartTime(), b.getStartTime());
+            }
+        });
+        return hits;
+    }
+
+    // build
+    // Preconditions:
+    //     - latticeListFilename is a lattice list, as Program2 reads
+    //     - indexDir is an existing directory
+    // Post-conditions
+    //     - The hits of every listed lattice are written to a new segment in
+    //       indexDir that replaces any segments already there, which are then
+    //       deleted (nothing changes if no lattice can be read)
+    //     - A lattice that cannot be read is reported and skipped, as in Program2
+    // Notes:
+    //     - The old segments are never opened, so they may be damaged or from
+    //       an older version
+    //     - If the segment cannot be written, prints an error and exits with
+    //       status 1
+    public static void build(String latticeListFilename, double lmScale, String indexDir) {
+        String name = addSegment(latticeListFilename, lmScale, indexDir, new java.util.HashSet<String>(),
+                                 nextSegmentNumber(segmentNames(indexDir)), true);
+        if( name != null ) {
+            deleteSegmentsBefore(indexDir, name);
+        }
+        return;
+    }
+
+    // append
+    // Preconditions:
+    //     - latticeListFilename is a lattice list, as Program2 reads
+    //     - lmScale is the index's lmScale, and Lattice.KEYWORD_POSTERIOR_SCALE
+    //       its posteriorScale (any, if the index is empty)
+    //     - indexDir is the directory this index was opened from
+    // Post-conditions
+    //     - The hits of every listed lattice whose utterance is not yet in
+    //       the index are written to a new segment in indexDir (none is
+    //       written if there are no such lattices)
+    //     - A lattice that cannot be read is reported and skipped, as in Program2
+    // Notes:
+    //     - This KeywordIndex does not see the new segment; open indexDir again
+    //     - If the segment cannot be written, prints an error and exits with
+    //       status 1
+    public void append(String latticeListFilename, double lmScale, String indexDir) {
+        addSegment(latticeListFilename, lmScale, indexDir, getUtteranceIDs(), nextSegment, false);
+        return;
+    }
+
+    // PRIVATE HELPER FUNCTIONS
+
+    // addSegment
+    // Indexes the listed lattices whose utterances are not in indexed into
+    // segment number, as build (if replace is set) or append describes
+    // Returns the new segment's name, or null if none was written
+    private static String addSegment(String latticeListFilename, double lmScale, String indexDir,
+                                     java.util.HashSet<String> indexed, int number, boolean replace) {
+        java.util.Scanner input = null;
+        try {
+            input = new java.util.Scanner(new java.io.File(latticeListFilename));
+        } catch( java.io.FileNotFoundException e ) {
+            System.err.println("Error: Unable to open file " + latticeListFilename);
+            System.exit(1);
+        }
+
+        java.util.ArrayList<String> utteranceIDs = new java.util.ArrayList<String>();
+        java.util.TreeMap<String, java.util.ArrayList<int[]>> postings =
+            new java.util.TreeMap<String, java.util.ArrayList<int[]>>(); // utterance, start, end, code
+        int numHits = 0;
+        while( input.hasNext() ) {
+            String latticeFilename = input.next();
+            input.next();   // The ref file is not needed
+
+            try {
+                // The header alone tells whether the utterance is new
+                Lattice lattice = Lattice.openLazy(latticeFilename);
+                if( !indexed.add(lattice.getUtteranceID()) ) {
+                    continue;
+                }
+                for( KeywordHit hit : lattice.findKeywordHits(lmScale, Lattice.KEYWORD_POSTERIOR_SCALE) ) {
+                    java.util.ArrayList<int[]> wordPostings = postings.get(hit.getWord());
+                    if( wordPostings == null ) {
+                        wordPostings = new java.util.ArrayList<int[]>();
+                        postings.put(hit.getWord(), wordPostings);
+                    }
+                    int code = (int) Math.round(-Math.log(hit.getPosterior()) / LOG_POSTERIOR_STEP);
+                    wordPostings.add(new int[] { utteranceIDs.size(),
+                                                 (int) Math.round(hit.getStartTime() * 100),
+                                                 (int) Math.round(hit.getEndTime() * 100),
+                                                 Math.max(0, Math.min(code, 255)) });
+                    numHits++;
+                }
+                utteranceIDs.add(lattice.getUtteranceID());
+            } catch( java.io.FileNotFoundException | RuntimeException e ) {
+                System.err.println("Error: Skipping " + latticeFilename + ": " + e);
+            }
+        }
+
+        if( utteranceIDs.isEmpty() ) {
+            System.err.println("No new utterances to index");
+            return null;
+        }
+
+        String name = String.format("%s%05d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+        try {
+            writeSegment(new java.io.File(indexDir, name), lmScale, replace, utteranceIDs, postings);
+        } catch( java.io.IOException e ) {
+            System.err.println("Error: Unable to write index segment " + name + ": " + e.getMessage());
+            System.exit(1);
+        }
+        System.err.println("Indexed " + numHits + " hits from " + utteranceIDs.size() + " utterances into " + name);
+        return name;
+    }
+
+    // writeSegment
+    // Writes a segment to a temporary file, syncs it and renames it into place
+    private static void writeSegment(java.io.File file, double lmScale, boolean replace,
+                                     java.util.ArrayList<String> utteranceIDs,
+                                     java.util.TreeMap<String, java.util.ArrayList<int[]>> postings)
+            throws java.io.IOException {
+        int numWords = postings.size();
+        int stringsStart = HEADER_BYTES + utteranceIDs.size() * UTTERANCE_ENTRY_BYTES + numWords * WORD_ENTRY_BYTES;
+        java.io.ByteArrayOutputStream strings = new java.io.ByteArrayOutputStream();
+        java.io.ByteArrayOutputStream postingBytes = new java.io.ByteArrayOutputStream();
+        int[] utteranceEntries = new int[2 * utteranceIDs.size()];
+        int[] wordEntries = new int[4 * numWords];
+
+        for( int u=0; u<utteranceIDs.size(); u++ ) {
+            byte[] bytes = utteranceIDs.get(u).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            utteranceEntries[2*u] = stringsStart + strings.size();
+            utteranceEntries[2*u+1] = bytes.length;
+            strings.write(bytes);
+        }
+
+        int w = 0;
+        for( java.util.Map.Entry<String, java.util.ArrayList<int[]>> entry : postings.entrySet() ) {
+            java.util.ArrayList<int[]> wordPostings = entry.getValue();
+            java.util.Collections.sort(wordPostings, new java.util.Comparator<int[]>() {
+                public int compare(int[] a, int[] b) {
+                    return a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(a[1], b[1]);
+                }
+            });
+            byte[] bytes = entry.getKey().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            wordEntries[4*w] = stringsStart + strings.size();
+            wordEntries[4*w+1] = bytes.length;
+            wordEntries[4*w+2] = postingBytes.size();   // Made absolute below
+            wordEntries[4*w+3] = wordPostings.size();
+            strings.write(bytes);
+
+            int utterance = 0, start = 0;
+            for( int[] posting : wordPostings ) {
+                if( posting[0] != utterance ) {
+                    start = 0;
+                }
+                writeVarint(postingBytes, posting[0] - utterance);
+                writeVarint(postingBytes, posting[1] - start);
+                writeVarint(postingBytes, posting[2] - posting[1]);
+                postingBytes.write(posting[3]);
+                utterance = posting[0];
+                start = posting[1];
+            }
+            w++;
+        }
+
+        long size = (long) stringsStart + strings.size() + postingBytes.size();
+        if( size > Integer.MAX_VALUE ) {
+            throw new java.io.IOException("segment would be " + size + " bytes; index fewer lattices at a time");
+        }
+
+        java.io.File temporary = new java.io.File(file.getPath() + ".tmp");
+        java.io.FileOutputStream stream = new java.io.FileOutputStream(temporary);
+        java.io.DataOutputStream out = new java.io.DataOutputStream(new java.io.BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeDouble(lmScale);
+        out.writeInt(utteranceIDs.size());
+        out.writeInt(numWords);
+        out.writeInt(HEADER_BYTES);
+        out.writeInt(HEADER_BYTES + utteranceIDs.size() * UTTERANCE_ENTRY_BYTES);
+        out.writeDouble(Lattice.KEYWORD_POSTERIOR_SCALE);
+        out.writeInt(replace ? 1 : 0);
+        out.writeInt(0);
+        for( int entry : utteranceEntries ) {
+            out.writeInt(entry);
+        }
+        int postingsStart = stringsStart + strings.size();
+        for( int i=0; i<wordEntries.length; i++ ) {
+            out.writeInt(i % 4 == 2 ? postingsStart + wordEntries[i] : wordEntries[i]);
+        }
+        strings.writeTo(out);
+        postingBytes.writeTo(out);
+        out.flush();
+        stream.getFD().sync();
+        out.close();
+
+        java.nio.file.Files.move(temporary.toPath(), file.toPath(), java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // segmentNames
+    // Returns the names of the segment files in indexDir, sorted
+    private static java.util.ArrayList<String> segmentNames(String indexDir) {
+        String[] names = new java.io.File(indexDir).list();
+        java.util.ArrayList<String> segmentNames = new java.util.ArrayList<String>();
+        for( String name : names == null ? new String[0] : names ) {
+            if( name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) ) {
+                segmentNames.add(name);
+            }
+        }
+        java.util.Collections.sort(segmentNames);
+        return segmentNames;
+    }
+
+    // nextSegmentNumber
+    // Returns a number whose segment would sort after every one named
+    private static int nextSegmentNumber(java.util.ArrayList<String> segmentNames) {
+        int next = 0;
+        for( String name : segmentNames ) {
+            String number = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+            try {
+                next = Math.max(next, Integer.parseInt(number) + 1);
+            } catch( NumberFormatException e ) {
+                // Not a name we gave; it still sorts after the segments before it
+            }
+        }
+        return next;
+    }
+
+    // deleteSegmentsBefore
+    // Removes the segments that sort before segment name (which replaces
+    // them), and any leftover temporary files, from indexDir
+    private static void deleteSegmentsBefore(String indexDir, String name) {
+        String[] names = new java.io.File(indexDir).list();
+        for( String other : names == null ? new String[0] : names ) {
+            if( other.startsWith(SEGMENT_PREFIX)
+                && ((other.endsWith(SEGMENT_SUFFIX) && other.compareTo(name) < 0)
+                    || other.endsWith(SEGMENT_SUFFIX + ".tmp")) ) {
+                if( !new java.io.File(indexDir, other).delete() ) {
+                    // Opening the index skips it anyway
+                    System.err.println("Warning: Unable to delete " + other + " from " + indexDir);
+                }
+            }
+        }
+    }
+
+    // findWord
+    // Binary-searches a segment's dictionary
+    // Returns the offset of word's entry, or -1 if the segment lacks it
+    private static int findWord(java.nio.MappedByteBuffer segment, String word) {
+        int numWords = segment.getInt(20);
+        int dictionary = segment.getInt(28);
+        int low = 0, high = numWords - 1;
+        while( low <= high ) {
+            int middle = (low + high) >>> 1;
+            int entry = dictionary + middle * WORD_ENTRY_BYTES;
+            int comparison = readString(segment, entry).compareTo(word);
+            if( comparison < 0 ) {
+                low = middle + 1;
+            } else if( comparison > 0 ) {
+                high = middle - 1;
+            } else {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    // utteranceID
+    // Returns the ID of a segment's utterance number u
+    private static String utteranceID(java.nio.MappedByteBuffer segment, int u) {
+        return readString(segment, segment.getInt(24) + u * UTTERANCE_ENTRY_BYTES);
+    }
+
+    // readString
+    // Decodes the string that the (offset, length) pair at entry points to
+    private static String readString(java.nio.MappedByteBuffer segment, int entry) {
+        byte[] bytes = new byte[segment.getInt(entry + 4)];
+        int offset = segment.getInt(entry);
+        for( int b=0; b<bytes.length; b++ ) {
+            bytes[b] = segment.get(offset + b);
+        }
+        return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    // writeVarint
+    // Writes a non-negative int seven bits at a time, low bits first
+    private static void writeVarint(java.io.ByteArrayOutputStream out, int value) {
+        while( (value & ~0x7f) != 0 ) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // readVarint
+    // Reads a varint at position[0] and advances position[0] past it
+    private static int readVarint(java.nio.MappedByteBuffer segment, int[] position) {
+        int value = 0;
+        for( int shift=0; ; shift+=7 ) {
+            byte b = segment.get(position[0]++);
+            value |= (b & 0x7f) << shift;
+            if( b >= 0 ) {
+                return value;
+            }
+        }
+    }
+}
@@ -7,6 +7,17 @@
 * Note that the Lattice type is immutable: after the fields are initialized
 * in the constructor, they cannot be modified.
 *
+* A lattice opened with openLazy reads only the header up front.  The node
+* times, and then the edges and topological order, are read from the file
+* the first time a method needs them; every method behaves exactly as it
+* does on an eagerly loaded lattice.
+*
+* A lattice opened with renumberNodes set is stored with its nodes numbered
+* in topological order (start first, end last), so traversals sweep the
+* node arrays front to back.  The file's node numbers are kept: toString,
+* saveAsFile, writeAsDot, printSortedHits, getNodeTime and topologicalSort
+* all speak in them, so the lattice looks the same from outside.
+*
 * Students may only use functionality provided in the packages
 *     java.lang
 *     java.util
@@ -21,15 +32,30 @@
 */
 
 public class Lattice {
+  public static final double MIN_POSTERIOR = 1e-4; // Confusion networks drop rarer edges
+  public static final double KEYWORD_POSTERIOR_SCALE = 0.004; // posteriorScale of the keyword index
+  public static final int MIN_DETERMINIZED_STATES = 1000; // Least state budget determinize allows
+
   private String utteranceID;       // A unique ID for the sentence
   private int startIdx, endIdx;     // Indices of the special start and end tokens
   private int numNodes, numEdges;   // The number of nodes and edges, respectively
-  private Edge[][] adjMatrix;       // Adjacency matrix representing the lattice
-  //   Two dimensional array of Edge objects
-  //   adjMatrix[i][j] == null means no edge (i,j)
+  private Edge[] edges;             // Adjacency lists representing the lattice
+  private int[] edgeStarts;         // Start node of each edge in edges
+  private int[] edgeEnds;           // End node of each edge in edges
+  private int[] edgeOffsets;        // Node i's out-edges are edges[edgeOffsets[i] .. edgeOffsets[i+1]-1]
+  //   Each node's out-edges are sorted by end node; several edges may join
+  //   the same two nodes, and they keep the order of the lattice file
   private double[] nodeTimes;       // Stores the timestamp for each node
   private int dfsTime;                 // time count for DFS search
   private int[] topSorted;          // array to store topologically sorted nodes
+  private String latticeFilename;   // File the nodes and edges are (lazily) read from
+  private long nodesOffset;         // Byte offset of the first node line
+  private long edgesOffset;         // Byte offset of the first edge line
+  private volatile boolean nodesLoaded; // Whether nodeTimes has been read
+  private volatile boolean edgesLoaded; // Whether the edges and topSorted have been built
+  private boolean renumberNodes;    // Whether to store nodes in topological order
+  private int[] originalIDs;        // File node number of each node (null if not renumbered)
+  private int[] internalIDs;        // Node of each file node number (null if not renumbered)
 
   // Constructor
 
@@ -42,13 +68,15 @@ public class Lattice {
   //     - Field endIdx contains the node number for the end node
   //     - Field numNodes contains the number of nodes in the lattice
   //     - Field numEdges contains the number of edges in the lattice
-  //     - Field adjMatrix encodes the edges in the lattice:
-  //        If an edge exists from node i to node j, adjMatrix[i][j] contains
-  //        the address of an Edge object, which itself contains
+  //     - Fields edges, edgeStarts, edgeEnds and edgeOffsets encode the edges
+  //        in the lattice, grouped by start node:
+  //        edges[e] is an Edge object from edgeStarts[e] to edgeEnds[e],
+  //        which itself contains
   //           1) The edge's label (word)
   //           2) The edge's acoustic model score (amScore)
   //           3) The edge's language model score (lmScore)
-  //        If no edge exists from node i to node j, adjMatrix[i][j] == null
+  //        Every edge of the file is kept, even if it joins the same two
+  //        nodes as another
   //     - Field nodeTimes is allocated and populated with the timestamps for each node
   // Notes:
   //     - If you encounter a FileNotFoundException, print to standard error
@@ -58,11 +86,8 @@ public class Lattice {
   //         "Error: Not able to parse file " + latticeFilename
   //       and exit with status (return code) 2
   public Lattice(String latticeFilename) {
-    java.util.Scanner input = null;
-
-    // open the file
     try {
-      input = new java.util.Scanner(new java.io.File(latticeFilename));
+      load(latticeFilename);
     } catch( java.io.FileNotFoundException e ) {
       System.err.println("Error: Unable to open file " + latticeFilename);
       System.exit(1);
@@ -72,46 +97,103 @@ public class Lattice {
       System.exit(2);
     }
 
-    // populate variables from the lattice file
-    input.next(); //"id"
-    this.utteranceID = input.next();
+    return;
+  }
 
-    input.next(); //"start"
-    this.startIdx = input.nextInt();
+  // Lattice - the empty lattice that open fills in
+  private Lattice() {
+  }
 
-    input.next(); //"end"
-    this.endIdx = input.nextInt();
+  // Lattice - a lattice built in memory, e.g. by determinize
+  // Pre-conditions:
+  //    - nodeTimes holds the node times, node 0 being the start and the
+  //      last node the end
+  //    - edgeStarts, edgeEnds and edges describe the edges
+  // Post-conditions:
+  //    - The fields are set as the file constructor would set them
+  private Lattice(String utteranceID, double[] nodeTimes, int[] edgeStarts, int[] edgeEnds, Edge[] edges) {
+    this.utteranceID = utteranceID;
+    this.numNodes = nodeTimes.length;
+    this.startIdx = 0;
+    this.endIdx = numNodes - 1;
+    this.nodeTimes = nodeTimes;
+    setEdges(edgeStarts, edgeEnds, edges);
+    this.topSorted = sortTopologically();
+    this.nodesLoaded = true;
+    this.edgesLoaded = true;
+  }
 
-    input.next(); //"numNodes"
-    this.numNodes = input.nextInt();
+  // open - build a lattice without exiting on a bad file
+  // Pre-conditions:
+  //    - latticeFilename is the path of a lattice file
+  // Post-conditions:
+  //    - Returns the lattice, exactly as the constructor would build it
+  // Notes:
+  //    - Throws java.io.FileNotFoundException if the file cannot be opened,
+  //      and java.util.NoSuchElementException if it cannot be parsed, so
+  //      batch runs can record the failure and move on
+  public static Lattice open(String latticeFilename) throws java.io.FileNotFoundException {
+    return open(latticeFilename, false);
+  }
 
-    input.next(); //"numEdges"
-    this.numEdges = input.nextInt();
+  // open - build a lattice, optionally renumbering its nodes
+  // Pre-conditions:
+  //    - latticeFilename is the path of a lattice file
+  // Post-conditions:
+  //    - Returns the lattice, as open(latticeFilename) does
+  //    - If renumberNodes is set, the nodes are stored in topological order
+  //      (see the note at the top of this file); a lattice whose start node
+  //      cannot come first or end node last is left as numbered in the file
+  // Notes:
+  //    - decode breaks ties between equally scored paths by node order, so
+  //      a renumbered lattice may pick a different one of several best paths
+  //    - Renumbering pays off once the node arrays outgrow the CPU caches,
+  //      on lattices far larger than those in prog2_data, and only if the
+  //      file is not already numbered in topological order
+  public static Lattice open(String latticeFilename, boolean renumberNodes) throws java.io.FileNotFoundException {
+    Lattice lattice = new Lattice();
+    lattice.renumberNodes = renumberNodes;
+    lattice.load(latticeFilename);
+    return lattice;
+  }
 
-    // populate nodeTimes variable
-    this.nodeTimes = new double[numNodes];
-    for (int i = 0; i < numNodes; i++){
-      input.next(); //"node"
-      int node = input.nextInt();
-      double timeStamp = input.nextDouble();
-      nodeTimes[node] = timeStamp;
-    }
+  // openLazy - open a lattice, reading only its header
+  // Pre-conditions:
+  //    - latticeFilename is the path of a lattice file that will not change
+  //      while the lattice is in use
+  // Post-conditions:
+  //    - Returns a lattice whose ID, start and end indices and node and edge
+  //      counts have been read; node times are read on first use, and edges
+  //      (and the topological sort) on the first use that needs them
+  // Notes:
+  //    - Throws java.io.FileNotFoundException if the file cannot be opened,
+  //      and java.util.NoSuchElementException if the header cannot be parsed
+  //    - A problem reading the rest of the file later surfaces from the
+  //      method that needed it, as java.util.NoSuchElementException or
+  //      java.io.UncheckedIOException
+  //    - Safe to share between threads: each part is read exactly once
+  public static Lattice openLazy(String latticeFilename) throws java.io.FileNotFoundException {
+    return openLazy(latticeFilename, false);
+  }
 
-    // populate adjMatrix variable
-    this.adjMatrix = new Edge[numNodes][numNodes];
-    for (int i = 0; i < numEdges; i++) {
-      input.next(); //"edge"
-      int startNode = input.nextInt();
-      int endNode = input.nextInt();
-      String label = input.next();
-      int amScore = input.nextInt();
-      int lmScore = input.nextInt();
-      adjMatrix[startNode][endNode] = new Edge(label, amScore, lmScore);
+  // openLazy - open a lattice lazily, optionally renumbering its nodes
+  // Pre-conditions:
+  //    - As for openLazy(latticeFilename)
+  // Post-conditions:
+  //    - Returns the lattice, as openLazy(latticeFilename) does; if
+  //      renumberNodes is set, the nodes are renumbered as for open when the
+  //      edges are read
+  public static Lattice openLazy(String latticeFilename, boolean renumberNodes) throws java.io.FileNotFoundException {
+    Lattice lattice = new Lattice();
+    lattice.renumberNodes = renumberNodes;
+    lattice.latticeFilename = latticeFilename;
+    LineReader input = new LineReader(latticeFilename, 0);
+    try {
+      lattice.readHeader(input);
+    } finally {
+      input.close();
     }
-
-    this.topSorted = topologicalSort();
-
-    return;
+    return lattice;
   }
 
   // Accessors
@@ -143,6 +225,25 @@ public class Lattice {
     return this.numEdges;
   }
 
+  // getNodeTime
+  // Pre-conditions:
+  //    - node is a node index, 0 <= node < getNumNodes()
+  // Post-conditions:
+  //    - Returns the timestamp of node, in seconds
+  // Notes:
+  //    - node is numbered as in the lattice file, even if the lattice was
+  //      renumbered
+  //    - On a lazily opened lattice this reads the node times, but not the
+  //      edges (unless the lattice is renumbered, which needs the edges)
+  public double getNodeTime(int node) {
+    if (renumberNodes) {
+      ensureEdges();
+    } else {
+      ensureNodes();
+    }
+    return this.nodeTimes[internalID(node)];
+  }
+
   // toString
   // Pre-conditions:
   //    - None
@@ -161,6 +262,7 @@ public class Lattice {
   //    - A StringBuilder is asymptotically more efficient for accumulating a
   //      String than repeated concatenation
   public String toString() {
+    ensureEdges();
     java.lang.StringBuilder newLattice = new StringBuilder();
     newLattice.append("id " + getUtteranceID());
     newLattice.append("\nstart " + 0);
@@ -168,22 +270,18 @@ public class Lattice {
     newLattice.append("\nnumNodes " + getNumNodes());
     newLattice.append("\nnumEdges " + getNumEdges());
 
-    // New line for each node
+    // New line for each node, numbered as in the file
     for (int i = startIdx; i <= endIdx; i++) {
       newLattice.append("\nnode " + i + " ");
-      newLattice.append(String.format("%.2f", nodeTimes[i]));
+      newLattice.append(String.format("%.2f", nodeTimes[internalID(i)]));
     }
 
     // New line for each edge
-    for(int i = startIdx; i <= endIdx; i++) {
-      for (int j = startIdx; j <= endIdx; j++) {
-        if (adjMatrix[i][j] != null) {
-          newLattice.append("\nedge " + i + " " + j + " ");
-          newLattice.append(adjMatrix[i][j].getLabel() + " ");
-          newLattice.append(adjMatrix[i][j].getAmScore() + " ");
-          newLattice.append(adjMatrix[i][j].getLmScore());
-        }
-      }
+    for (int e : edgesInFileOrder()) {
+      newLattice.append("\nedge " + originalID(edgeStarts[e]) + " " + originalID(edgeEnds[e]) + " ");
+      newLattice.append(edges[e].getLabel() + " ");
+      newLattice.append(edges[e].getAmScore() + " ");
+      newLattice.append(edges[e].getLmScore());
     }
 
     newLattice.append("\n");
@@ -210,18 +308,18 @@ public class Lattice {
   // Notes:
   //    - It is okay if this algorithm has time complexity O(V^2)
   public Hypothesis decode(double lmScale) {
+    ensureEdges();
     Hypothesis decodeHypothesis = new Hypothesis();
     double[] distance = new double[numNodes];
     int[] parent = new int[numNodes];
 
-    // Calculate shortest path and put it in an array
+    // Calculate shortest path and put its edges in an array
     shortestPath(distance, parent, lmScale);
     int[] finalPath = backtrack(endIdx, parent);
 
     // Construct the hypothesis
-    for(int node : finalPath) {
-      int nodeParent = parent[node];
-      decodeHypothesis.addWord(adjMatrix[nodeParent][node].getLabel(), adjMatrix[nodeParent][node].getCombinedScore(lmScale));
+    for(int e : finalPath) {
+      decodeHypothesis.addWord(edges[e].getLabel(), edges[e].getCombinedScore(lmScale));
     }
 
     return decodeHypothesis;
@@ -236,26 +334,16 @@ public class Lattice {
   //      incoming edges.  More generally, the node in the i'th element
   //      has no incoming edges from nodes in the i+1'th or later elements
   //      ---- which is to say, the edges are all pointing to the end
+  // Notes:
+  //    - Nodes are numbered as in the lattice file, even if the lattice was
+  //      renumbered
   public int[] topologicalSort() {
-    boolean[] visited = new boolean[numNodes];
-    java.util.ArrayList<Integer> sorted = new java.util.ArrayList<Integer>();
-
-    // initialize
-    for (int i = startIdx; i <= endIdx; i++) {
-      visited[i] = false;
-    }
-    dfsTime = 0;
-
-    // discover nodes
-    for (int i = startIdx; i <= endIdx; i++) {
-      if (visited[i] == false) {
-        dfsVisit(i, visited, sorted);
-      }
+    ensureEdges();
+    int[] sorted = sortTopologically();
+    for (int k = 0; k < sorted.length; k++) {
+      sorted[k] = originalID(sorted[k]);
     }
-
-    int[] sortedArray = convertArray(sorted);
-
-    return sortedArray;
+    return sorted;
   }
 
   // countAllPaths
@@ -271,21 +359,20 @@ public class Lattice {
   //        Instead of min'ing scores over the incoming edges, you'll want to
   //        do some other operation...
   public java.math.BigInteger countAllPaths() {
-    int[] pathsToNode = new int[numNodes];
+    ensureEdges();
+    java.math.BigInteger[] pathsToNode = new java.math.BigInteger[numNodes];
+    java.util.Arrays.fill(pathsToNode, java.math.BigInteger.ZERO);
 
-    pathsToNode[startIdx] = 1;
+    pathsToNode[startIdx] = java.math.BigInteger.ONE;
 
+    // Parallel edges are distinct paths
     for (int i : topSorted) {
-      for (int j = startIdx; j <= endIdx; j++) {
-        if (adjMatrix[i][j] != null) {
-
-          pathsToNode[j] = pathsToNode[j] + pathsToNode[i];
-
-        }
+      for (int e = edgeOffsets[i]; e < edgeOffsets[i+1]; e++) {
+        pathsToNode[edgeEnds[e]] = pathsToNode[edgeEnds[e]].add(pathsToNode[i]);
       }
     }
 
-    return java.math.BigInteger.valueOf(pathsToNode[endIdx]);
+    return pathsToNode[endIdx];
   }
 
   // getLatticeDensity
@@ -296,15 +383,14 @@ public class Lattice {
   //      (# of non -silence- words in lattice) / (# seconds from start to end index)
   //      Note that multiwords (e.g. to_the) count as a single non-silence word
   public double getLatticeDensity() {
+    ensureEdges();
     int nonSilence = 0;
     double seconds = nodeTimes[endIdx];
 
     // # non -silence- words
-    for(int i = startIdx; i <= endIdx; i++) {
-      for (int j = startIdx; j <= endIdx; j++) {
-        if (adjMatrix[i][j] != null && !adjMatrix[i][j].getLabel().equals("-silence-")) {
-          nonSilence ++;
-        }
+    for (Edge edge : edges) {
+      if (!edge.getLabel().equals("-silence-")) {
+        nonSilence ++;
       }
     }
     return nonSilence/seconds;
@@ -320,28 +406,25 @@ public class Lattice {
   //    - For context on the dot format, see
   //        - http://en.wikipedia.org/wiki/DOT_%28graph_description_language%29
   //        - http://www.graphviz.org/pdf/dotguide.pdf
-  public void writeAsDot(String dotFilename) {
-    try{
-      java.io.PrintStream output = new java.io.PrintStream(new java.io.FileOutputStream(dotFilename));
+  //    - Throws java.io.FileNotFoundException if dotFilename cannot be
+  //      written (e.g. its directory does not exist)
+  public void writeAsDot(String dotFilename) throws java.io.FileNotFoundException {
+    ensureEdges();
+    java.io.PrintStream output = new java.io.PrintStream(new java.io.FileOutputStream(dotFilename));
+    try {
       // header
       output.println("digraph g {");
       output.println("  rankdir=\"LR\"");
 
-      // edge definitions
-      for(int i = startIdx; i <= endIdx; i++) {
-        for (int j = startIdx; j <= endIdx; j++) {
-          if (adjMatrix[i][j] != null) {
-            output.println("  " + i + " -> " + j + " [label = \"" + adjMatrix[i][j].getLabel() + "\"]");
-          }
-        }
+      // edge definitions, numbered as in the file
+      for (int e : edgesInFileOrder()) {
+        output.println("  " + originalID(edgeStarts[e]) + " -> " + originalID(edgeEnds[e])
+                       + " [label = \"" + edges[e].getLabel() + "\"]");
       }
 
       output.println("}");
+    } finally {
       output.close();
-
-    } catch (java.io.FileNotFoundException e) {
-      System.out.println("Error: Unable to save to " + dotFilename + ". Check to see directory exists.");
-      System.exit(1);
     }
     return;
   }
@@ -353,14 +436,15 @@ public class Lattice {
   //    - The lattice's toString() representation is written to the output file
   // Note:
   //    - This output file should be in the same format as the input .lattice file
-  public void saveAsFile(String latticeOutputFilename) {
-    try{
-      java.io.PrintStream output = new java.io.PrintStream(new java.io.FileOutputStream(latticeOutputFilename));
-      output.print(toString());
+  //    - Throws java.io.FileNotFoundException if latticeOutputFilename cannot
+  //      be written (e.g. its directory does not exist)
+  public void saveAsFile(String latticeOutputFilename) throws java.io.FileNotFoundException {
+    String lattice = toString();
+    java.io.PrintStream output = new java.io.PrintStream(new java.io.FileOutputStream(latticeOutputFilename));
+    try {
+      output.print(lattice);
+    } finally {
       output.close();
-    } catch (java.io.FileNotFoundException e) {
-      System.out.println("Error: Unable to save to " + latticeOutputFilename + ". Check to see directory exists.");
-      System.exit(1);
     }
     return;
   }
@@ -373,14 +457,14 @@ public class Lattice {
   //      with the specified time
   //     (If the time is not within the time range of the lattice, the Hashset should be empty)
   public java.util.HashSet<String> uniqueWordsAtTime(double time) {
+    ensureEdges();
     java.util.HashSet<String> uniqueWords = new java.util.HashSet<String>();
 
-    for(int i = startIdx; i < endIdx; i++) {
-      for(int j = startIdx; j < endIdx; j++) {
-        if (adjMatrix[i][j] != null) {
-          if (nodeTimes[i] <= time && nodeTimes[j] >= time) {
-            uniqueWords.add(adjMatrix[i][j].getLabel());
-          }
+    for (int e = 0; e < numEdges; e++) {
+      int i = edgeStarts[e], j = edgeEnds[e];
+      if (i < endIdx && j < endIdx) {
+        if (nodeTimes[i] <= time && nodeTimes[j] >= time) {
+          uniqueWords.add(edges[e].getLabel());
         }
       }
     }
@@ -399,42 +483,715 @@ public class Lattice {
   //    - java.util.Arrays.sort can be used to sort
   //    - PrintStream's format method can print numbers to two decimal places
   public void printSortedHits(String word) {
+    ensureEdges();
     double midpoint = 0;
 
-    for(int i = startIdx; i <= endIdx; i++) {
-      for (int j = startIdx; j <= endIdx; j++) {
-        if (adjMatrix[i][j] != null && adjMatrix[i][j].getLabel().equals(word)) {
-          midpoint = (nodeTimes[i] + nodeTimes[j]) / 2;
-          System.out.print(String.format("%.2f", midpoint) + " ");
-        }
+    // In file order, so a renumbered lattice prints the same line
+    for (int e : edgesInFileOrder()) {
+      if (edges[e].getLabel().equals(word)) {
+        midpoint = (nodeTimes[edgeStarts[e]] + nodeTimes[edgeEnds[e]]) / 2;
+        System.out.print(String.format("%.2f", midpoint) + " ");
       }
     }
 
     return;
   }
 
+  // computeStatistics - gather several statistics in one sweep over the edges
+  // Pre-conditions:
+  //    - metrics holds the LatticeStatistics.Metric values wanted
+  //    - words holds the words (or multiwords) whose hits are wanted (may be empty)
+  //    - times holds the times whose words are wanted (may be empty)
+  // Post-conditions:
+  //    - Returns the requested statistics, visiting each edge once:
+  //        PATH_COUNT        as countAllPaths describes it, exact for any count
+  //        DENSITY           as getLatticeDensity describes it
+  //        BRANCHING_FACTOR  the number of nodes with each out-degree
+  //        each word         its hit midpoints, as printSortedHits describes them
+  //        each time         its words, as uniqueWordsAtTime describes them
+  // Notes:
+  //    - This replaces one full scan per statistic when several are needed
+  public LatticeStatistics computeStatistics(java.util.Set<LatticeStatistics.Metric> metrics,
+                                             String[] words, double[] times) {
+    ensureEdges();
+    boolean countPaths = metrics.contains(LatticeStatistics.Metric.PATH_COUNT);
+    boolean countWords = metrics.contains(LatticeStatistics.Metric.DENSITY);
+    boolean countBranches = metrics.contains(LatticeStatistics.Metric.BRANCHING_FACTOR);
+
+    java.math.BigInteger[] pathsToNode = null;
+    if (countPaths) {
+      pathsToNode = new java.math.BigInteger[numNodes];
+      java.util.Arrays.fill(pathsToNode, java.math.BigInteger.ZERO);
+      pathsToNode[startIdx] = java.math.BigInteger.ONE;
+    }
+    int nonSilence = 0;
+    int[] degreeCounts = new int[numNodes + 1];
+    int maxDegree = 0;
+
+    java.util.HashMap<String, Integer> wordIndex = new java.util.HashMap<String, Integer>();
+    for (int w = 0; w < words.length; w++) {
+      wordIndex.putIfAbsent(words[w], w);
+    }
+    double[][] hits = new double[words.length][8];
+    int[] numHits = new int[words.length];
+
+    java.util.ArrayList<java.util.HashSet<String>> wordsAtTimes = new java.util.ArrayList<java.util.HashSet<String>>();
+    for (int t = 0; t < times.length; t++) {
+      wordsAtTimes.add(new java.util.HashSet<String>());
+    }
+
+    // The sweep: nodes in topological order, so path counts are final
+    // before they are passed on
+    for (int i : topSorted) {
+      int degree = edgeOffsets[i+1] - edgeOffsets[i];
+      for (int e = edgeOffsets[i]; e < edgeOffsets[i+1]; e++) {
+        int j = edgeEnds[e];
+        String label = edges[e].getLabel();
+
+        if (countPaths) {
+          pathsToNode[j] = pathsToNode[j].add(pathsToNode[i]);
+        }
+        if (countWords && !label.equals("-silence-")) {
+          nonSilence++;
+        }
+        if (!wordIndex.isEmpty()) {
+          Integer w = wordIndex.get(label);
+          if (w != null) {
+            if (numHits[w] == hits[w].length) {
+              hits[w] = java.util.Arrays.copyOf(hits[w], 2 * numHits[w]);
+            }
+            hits[w][numHits[w]++] = (nodeTimes[i] + nodeTimes[j]) / 2;
+          }
+        }
+        for (int t = 0; t < times.length; t++) {
+          if (nodeTimes[i] <= times[t] && nodeTimes[j] >= times[t]) {
+            wordsAtTimes.get(t).add(label);
+          }
+        }
+      }
+      if (degree >= degreeCounts.length) {
+        degreeCounts = java.util.Arrays.copyOf(degreeCounts, Math.max(degree + 1, 2 * degreeCounts.length));
+      }
+      degreeCounts[degree]++;
+      maxDegree = Math.max(maxDegree, degree);
+    }
+
+    for (int w = 0; w < words.length; w++) {
+      hits[w] = java.util.Arrays.copyOf(hits[w], numHits[w]);
+      java.util.Arrays.sort(hits[w]);
+    }
+
+    return new LatticeStatistics(countPaths ? pathsToNode[endIdx] : null,
+                                 countWords ? nonSilence : -1,
+                                 countWords ? nonSilence / nodeTimes[endIdx] : Double.NaN,
+                                 countBranches ? java.util.Arrays.copyOf(degreeCounts, maxDegree + 1) : null,
+                                 words.clone(), hits, times.clone(), wordsAtTimes);
+  }
+
+  // toConfusionNetwork - collapse the lattice into a confusion network
+  // Pre-conditions:
+  //    - lmScale weights the lmScore, as for decode
+  //    - posteriorScale > 0 converts a path's combined score into a log
+  //      probability: P(path) is proportional to exp(-posteriorScale * score)
+  // Post-conditions:
+  //    - Returns a ConfusionNetwork built from the posterior probability of
+  //      every word edge (computed with the forward-backward algorithm),
+  //      with slots bounded by the node times along the decode path;
+  //      edges with posterior below MIN_POSTERIOR are left out
+  public ConfusionNetwork toConfusionNetwork(double lmScale, double posteriorScale) {
+    ensureEdges();
+    java.util.ArrayList<String> labels = new java.util.ArrayList<String>();
+    java.util.ArrayList<double[]> arcs = new java.util.ArrayList<double[]>(); // start, end, posterior
+    collectWordArcs(lmScale, posteriorScale, labels, arcs);
+
+    double[] startTimes = new double[arcs.size()];
+    double[] endTimes = new double[arcs.size()];
+    double[] posteriors = new double[arcs.size()];
+    for (int a = 0; a < arcs.size(); a++) {
+      startTimes[a] = arcs.get(a)[0];
+      endTimes[a] = arcs.get(a)[1];
+      posteriors[a] = arcs.get(a)[2];
+    }
+
+    // The words of the best path, split the same way, bound the slots
+    double[] distance = new double[numNodes];
+    int[] parent = new int[numNodes];
+    shortestPath(distance, parent, lmScale);
+    java.util.ArrayList<Double> boundaries = new java.util.ArrayList<Double>();
+    boundaries.add(nodeTimes[startIdx]);
+    for (int e : backtrack(endIdx, parent)) {
+      int nodeParent = edgeStarts[e];
+      int node = edgeEnds[e];
+      String[] parts = edges[e].getLabel().split("_");
+      double step = (nodeTimes[node] - nodeTimes[nodeParent]) / parts.length;
+      for (int p = 1; p <= parts.length; p++) {
+        double time = nodeTimes[nodeParent] + p * step;
+        if (time > boundaries.get(boundaries.size() - 1)) {
+          boundaries.add(time);
+        }
+      }
+    }
+    double[] slotBoundaries = new double[boundaries.size()];
+    for (int b = 0; b < slotBoundaries.length; b++) {
+      slotBoundaries[b] = boundaries.get(b);
+    }
+
+    return new ConfusionNetwork(slotBoundaries, labels.toArray(new String[0]), startTimes, endTimes, posteriors);
+  }
+
+  // findKeywordHits - every place a word may have been spoken
+  // Pre-conditions:
+  //    - lmScale and posteriorScale are as for toConfusionNetwork
+  // Post-conditions:
+  //    - Returns one KeywordHit per occurrence of a word, ordered by word
+  //      and then start time.  Words are spelled as Hypothesis.addWord
+  //      spells them (multiwords split, -silence- skipped)
+  //    - Edges of the same word whose time spans overlap are one occurrence:
+  //      its posterior is their summed posterior (at most 1), and its times
+  //      are those of the most probable of them
+  //    - Edges with posterior below MIN_POSTERIOR are left out
+  public java.util.ArrayList<KeywordHit> findKeywordHits(double lmScale, double posteriorScale) {
+    ensureEdges();
+    java.util.ArrayList<String> labels = new java.util.ArrayList<String>();
+    java.util.ArrayList<double[]> arcs = new java.util.ArrayList<double[]>(); // start, end, posterior
+    collectWordArcs(lmScale, posteriorScale, labels, arcs);
+
+    // Group the arcs by word, then merge overlapping arcs in start time order
+    java.util.TreeMap<String, java.util.ArrayList<double[]>> byWord =
+      new java.util.TreeMap<String, java.util.ArrayList<double[]>>();
+    for (int a = 0; a < arcs.size(); a++) {
+      java.util.ArrayList<double[]> wordArcs = byWord.get(labels.get(a));
+      if (wordArcs == null) {
+        wordArcs = new java.util.ArrayList<double[]>();
+        byWord.put(labels.get(a), wordArcs);
+      }
+      wordArcs.add(arcs.get(a));
+    }
+
+    java.util.ArrayList<KeywordHit> hits = new java.util.ArrayList<KeywordHit>();
+    for (java.util.Map.Entry<String, java.util.ArrayList<double[]>> entry : byWord.entrySet()) {
+      java.util.ArrayList<double[]> wordArcs = entry.getValue();
+      java.util.Collections.sort(wordArcs, new java.util.Comparator<double[]>() {
+        public int compare(double[] a, double[] b) {
+          return Double.compare(a[0], b[0]);
+        }
+      });
+      double[] best = null;
+      double clusterEnd = 0, posterior = 0;
+      for (double[] arc : wordArcs) {
+        if (best != null && arc[0] >= clusterEnd) {
+          hits.add(new KeywordHit(utteranceID, entry.getKey(), best[0], best[1], Math.min(posterior, 1.0)));
+          best = null;
+        }
+        if (best == null) {
+          best = arc;
+          clusterEnd = arc[1];
+          posterior = 0;
+        }
+        if (arc[2] > best[2]) {
+          best = arc;
+        }
+        clusterEnd = Math.max(clusterEnd, arc[1]);
+        posterior += arc[2];
+      }
+      hits.add(new KeywordHit(utteranceID, entry.getKey(), best[0], best[1], Math.min(posterior, 1.0)));
+    }
+    return hits;
+  }
+
+  // decodeConsensus - minimum Bayes risk decoding
+  // Pre-conditions:
+  //    - lmScale and posteriorScale are as for toConfusionNetwork
+  // Post-conditions:
+  //    - Returns the consensus hypothesis of the lattice's confusion network,
+  //      which aims at the lowest expected WER rather than the single most
+  //      probable path that decode returns
+  // Notes:
+  //    - There is no default posteriorScale: tuned on half of prog2_data at
+  //      lmScale 8, consensus decoding still had a higher WER than decode on
+  //      the other half
+  public Hypothesis decodeConsensus(double lmScale, double posteriorScale) {
+    return toConfusionNetwork(lmScale, posteriorScale).getConsensusHypothesis();
+  }
+
+  // determinize - keep only the best path for each distinct word sequence
+  // Pre-conditions:
+  //    - lmScale weights the lmScore, as for decode
+  //    - maxStates bounds the work: determinization gives up once it has
+  //      built maxStates states (or stored 64 * maxStates subset entries,
+  //      or twice this lattice's edge count in arcs), or if the result would
+  //      have more than maxStates nodes or more edges than this lattice
+  // Post-conditions:
+  //    - Returns a new, minimal lattice with exactly one path per word
+  //      sequence of this lattice, scored with that sequence's best combined
+  //      score.  Word sequences are read as Hypothesis.addWord reads them:
+  //      -silence- spells nothing and multiwords spell their parts
+  //    - Each edge of the new lattice carries its whole score as amScore,
+  //      with lmScore 0, so its decode gives the same result for any lmScale
+  //    - If the budget is exceeded, this lattice is returned unchanged, so
+  //      the result never has more edges than this lattice
+  // Notes:
+  //    - The new lattice's words are single words, -silence- edges lead into
+  //      the end node, and node times are those of the best-scoring original
+  //      node each new node stands for
+  public Lattice determinize(double lmScale, int maxStates) {
+    ensureEdges();
+    LatticeDeterminizer determinizer = new LatticeDeterminizer(nodeTimes, startIdx, endIdx);
+    for (int i : topSorted) {
+      for (int e = edgeOffsets[i]; e < edgeOffsets[i+1]; e++) {
+        determinizer.addEdge(i, edgeEnds[e], edges[e].getLabel(), edges[e].getCombinedScore(lmScale));
+      }
+    }
+    if (!determinizer.determinize(maxStates, numEdges)) {
+      return this;
+    }
+    return new Lattice(utteranceID, determinizer.getNodeTimes(), determinizer.getEdgeStarts(),
+                       determinizer.getEdgeEnds(), determinizer.getEdges());
+  }
+
+  // determinize - determinize with a budget proportional to the lattice's size
+  // Pre-conditions:
+  //    - lmScale weights the lmScore, as for decode
+  // Post-conditions:
+  //    - Returns determinize(lmScale, maxStates) with maxStates the larger of
+  //      MIN_DETERMINIZED_STATES and 2 * numNodes
+  // Notes:
+  //    - Determinization can blow a lattice up many times over; this budget
+  //      keeps the result within about twice this lattice's node count and
+  //      its edge count, and gives up early on lattices that would grow past it
+  public Lattice determinize(double lmScale) {
+    return determinize(lmScale, Math.max(MIN_DETERMINIZED_STATES, 2 * numNodes));
+  }
+
+  // mergeDuplicateEdges - keep only the best of identical parallel edges
+  // Pre-conditions:
+  //    - lmScale weights the lmScore, as for decode
+  // Post-conditions:
+  //    - Returns a lattice in which no two edges join the same two nodes with
+  //      the same label: of each such group only the edge with the lowest
+  //      combined score is kept (the first of them, on a tie), in the place
+  //      of the group's first edge
+  //    - Nodes, and their numbering, are unchanged, and decode finds a path
+  //      with the same score.  Path counts and density count the merged
+  //      edges once
+  //    - If there are no such groups, this lattice is returned
+  public Lattice mergeDuplicateEdges(double lmScale) {
+    ensureEdges();
+    int[] starts = new int[numEdges];
+    int[] ends = new int[numEdges];
+    Edge[] kept = new Edge[numEdges];
+    int count = 0;
+    java.util.HashMap<String, Integer> groups = new java.util.HashMap<String, Integer>();
+    for (int i = 0; i < numNodes; i++) {
+      groups.clear();
+      for (int e = edgeOffsets[i]; e < edgeOffsets[i+1]; e++) {
+        Integer k = groups.get(edgeEnds[e] + " " + edges[e].getLabel());
+        if (k == null) {
+          groups.put(edgeEnds[e] + " " + edges[e].getLabel(), count);
+          starts[count] = i;
+          ends[count] = edgeEnds[e];
+          kept[count++] = edges[e];
+        } else if (edges[e].getCombinedScore(lmScale) < kept[k].getCombinedScore(lmScale)) {
+          kept[k] = edges[e];
+        }
+      }
+    }
+    if (count == numEdges) {
+      return this;
+    }
+
+    // Same nodes and a subset of the edges, so topSorted still holds
+    Lattice merged = new Lattice();
+    merged.utteranceID = utteranceID;
+    merged.startIdx = startIdx;
+    merged.endIdx = endIdx;
+    merged.numNodes = numNodes;
+    merged.nodeTimes = nodeTimes;
+    merged.renumberNodes = renumberNodes;
+    merged.originalIDs = originalIDs;
+    merged.internalIDs = internalIDs;
+    merged.setEdges(java.util.Arrays.copyOf(starts, count), java.util.Arrays.copyOf(ends, count),
+                    java.util.Arrays.copyOf(kept, count));
+    merged.topSorted = topSorted;
+    merged.nodesLoaded = true;
+    merged.edgesLoaded = true;
+    return merged;
+  }
+
   // PRIVATE HELPER FUNCTIONS
 
+  // load
+  // Populates the fields from a lattice file, as described for the constructor
+  private void load(String latticeFilename) throws java.io.FileNotFoundException {
+    this.latticeFilename = latticeFilename;
+    LineReader input = new LineReader(latticeFilename, 0);
+    try {
+      readHeader(input);
+      readNodes(input);
+      readEdges(input);
+    } finally {
+      input.close();
+    }
+
+    this.topSorted = sortTopologically();
+    if (renumberNodes) {
+      renumberTopologically();
+    }
+    this.nodesLoaded = true;
+    this.edgesLoaded = true;
+  }
+
+  // ensureNodes
+  // Reads nodeTimes from the file the first time they are needed
+  private void ensureNodes() {
+    if (!nodesLoaded) {
+      synchronized (this) {
+        if (!nodesLoaded) {
+          LineReader input = reopen(nodesOffset);
+          try {
+            readNodes(input);
+          } finally {
+            input.close();
+          }
+          nodesLoaded = true;
+        }
+      }
+    }
+  }
+
+  // ensureEdges
+  // Reads the edges and builds topSorted the first time they are needed
+  private void ensureEdges() {
+    if (!edgesLoaded) {
+      ensureNodes();
+      synchronized (this) {
+        if (!edgesLoaded) {
+          LineReader input = reopen(edgesOffset);
+          try {
+            readEdges(input);
+          } finally {
+            input.close();
+          }
+          this.topSorted = sortTopologically();
+          if (renumberNodes) {
+            renumberTopologically();
+          }
+          edgesLoaded = true;
+        }
+      }
+    }
+  }
+
+  // reopen
+  // Opens latticeFilename again at the given byte offset
+  private LineReader reopen(long offset) {
+    try {
+      return new LineReader(latticeFilename, offset);
+    } catch (java.io.FileNotFoundException e) {
+      throw new java.io.UncheckedIOException(e);
+    }
+  }
+
+  // readHeader
+  // Reads the id, start, end, numNodes and numEdges lines
+  private void readHeader(LineReader input) {
+    // populate variables from the lattice file
+    this.utteranceID = input.nextFields("id", 2)[1];
+    this.startIdx = parseInt(input.nextFields("start", 2)[1]);
+    this.endIdx = parseInt(input.nextFields("end", 2)[1]);
+    this.numNodes = parseInt(input.nextFields("numNodes", 2)[1]);
+    this.numEdges = parseInt(input.nextFields("numEdges", 2)[1]);
+    this.nodesOffset = input.getOffset();
+  }
+
+  // readNodes
+  // Reads the node lines into nodeTimes
+  private void readNodes(LineReader input) {
+    // populate nodeTimes variable
+    double[] times = new double[numNodes];
+    for (int i = 0; i < numNodes; i++){
+      String[] fields = input.nextFields("node", 3);
+      int node = parseInt(fields[1]);
+      if (node < 0 || node >= numNodes) {
+        throw new java.util.InputMismatchException("node " + node);
+      }
+      times[node] = parseDouble(fields[2]);
+    }
+    this.edgesOffset = input.getOffset();
+    this.nodeTimes = times;
+  }
+
+  // readEdges
+  // Reads the edge lines into the adjacency lists
+  private void readEdges(LineReader input) {
+    // populate the edge arrays
+    int[] starts = new int[numEdges];
+    int[] ends = new int[numEdges];
+    Edge[] list = new Edge[numEdges];
+    for (int i = 0; i < numEdges; i++) {
+      String[] fields = input.nextFields("edge", 6);
+      starts[i] = parseInt(fields[1]);
+      ends[i] = parseInt(fields[2]);
+      String label = fields[3];
+      int amScore = parseInt(fields[4]);
+      int lmScore = parseInt(fields[5]);
+      list[i] = new Edge(label, amScore, lmScore);
+    }
+    setEdges(starts, ends, list);
+  }
+
+  // setEdges
+  // Stores the given edges as adjacency lists: grouped by start node, then
+  // sorted by end node, keeping the given order among edges that join the
+  // same two nodes (two stable counting sorts)
+  private void setEdges(int[] starts, int[] ends, Edge[] list) {
+    int count = list.length;
+    for (int e = 0; e < count; e++) {
+      if (starts[e] < 0 || starts[e] >= numNodes || ends[e] < 0 || ends[e] >= numNodes) {
+        throw new java.util.InputMismatchException("edge " + starts[e] + " " + ends[e]);
+      }
+    }
+    int[] byEnd = countingSort(ends, identity(count));
+    int[] order = countingSort(starts, byEnd);
+
+    this.numEdges = count;
+    this.edges = new Edge[count];
+    this.edgeStarts = new int[count];
+    this.edgeEnds = new int[count];
+    this.edgeOffsets = new int[numNodes + 1];
+    for (int k = 0; k < count; k++) {
+      edges[k] = list[order[k]];
+      edgeStarts[k] = starts[order[k]];
+      edgeEnds[k] = ends[order[k]];
+      edgeOffsets[edgeStarts[k] + 1]++;
+    }
+    for (int i = 0; i < numNodes; i++) {
+      edgeOffsets[i+1] += edgeOffsets[i];
+    }
+  }
+
+  // countingSort
+  // Returns the indices in order, stably sorted by their node in nodes
+  private int[] countingSort(int[] nodes, int[] order) {
+    int[] next = new int[numNodes + 1];
+    for (int index : order) {
+      next[nodes[index] + 1]++;
+    }
+    for (int i = 0; i < numNodes; i++) {
+      next[i+1] += next[i];
+    }
+    int[] sorted = new int[order.length];
+    for (int index : order) {
+      sorted[next[nodes[index]]++] = index;
+    }
+    return sorted;
+  }
+
+  // identity
+  // Returns 0, 1, ..., count - 1
+  private static int[] identity(int count) {
+    int[] indices = new int[count];
+    for (int k = 0; k < count; k++) {
+      indices[k] = k;
+    }
+    return indices;
+  }
+
+  // edgesInFileOrder
+  // Returns the edge indices sorted by file start node, then file end node,
+  // as toString lists them (the stored order, unless the lattice was renumbered)
+  private int[] edgesInFileOrder() {
+    if (originalIDs == null) {
+      return identity(numEdges);
+    }
+    int[] fileStarts = new int[numEdges];
+    int[] fileEnds = new int[numEdges];
+    for (int e = 0; e < numEdges; e++) {
+      fileStarts[e] = originalIDs[edgeStarts[e]];
+      fileEnds[e] = originalIDs[edgeEnds[e]];
+    }
+    return countingSort(fileStarts, countingSort(fileEnds, identity(numEdges)));
+  }
+
+  // renumberTopologically
+  // Renumbers the nodes in topSorted's order, with startIdx first and endIdx
+  // last, unless some edge would then point backwards.  Afterwards topSorted
+  // is 0, 1, ..., numNodes - 1
+  private void renumberTopologically() {
+    int[] order = new int[numNodes];
+    int[] position = new int[numNodes];
+    int k = 0;
+    order[k++] = startIdx;
+    for (int node : topSorted) {
+      if (node != startIdx && node != endIdx) {
+        order[k++] = node;
+      }
+    }
+    order[k] = endIdx;
+    for (k = 0; k < numNodes; k++) {
+      position[order[k]] = k;
+    }
+
+    int[] starts = new int[numEdges];
+    int[] ends = new int[numEdges];
+    for (int e = 0; e < numEdges; e++) {
+      starts[e] = position[edgeStarts[e]];
+      ends[e] = position[edgeEnds[e]];
+      if (starts[e] >= ends[e]) {
+        return;
+      }
+    }
+
+    double[] times = new double[numNodes];
+    for (k = 0; k < numNodes; k++) {
+      times[k] = nodeTimes[order[k]];
+      topSorted[k] = k;
+    }
+    setEdges(starts, ends, edges.clone());
+    this.nodeTimes = times;
+    this.originalIDs = order;
+    this.internalIDs = position;
+    this.startIdx = 0;
+    this.endIdx = numNodes - 1;
+  }
+
+  // originalID and internalID
+  // Map a node to its number in the lattice file and back (the same number
+  // unless the lattice was renumbered)
+  private int originalID(int node) {
+    return originalIDs == null ? node : originalIDs[node];
+  }
+
+  private int internalID(int fileNode) {
+    return internalIDs == null ? fileNode : internalIDs[fileNode];
+  }
+
+  // parseInt and parseDouble
+  // Number parsing that fails the way java.util.Scanner does
+  private static int parseInt(String field) {
+    try {
+      return Integer.parseInt(field);
+    } catch (NumberFormatException e) {
+      throw new java.util.InputMismatchException(field);
+    }
+  }
+
+  private static double parseDouble(String field) {
+    try {
+      return Double.parseDouble(field);
+    } catch (NumberFormatException e) {
+      throw new java.util.InputMismatchException(field);
+    }
+  }
+
+  // forwardLogScores
+  // For each node, the log of the summed probability of all paths from
+  // startIdx to it (Double.NEGATIVE_INFINITY if it cannot be reached)
+  private double[] forwardLogScores(double lmScale, double posteriorScale) {
+    double[] forward = new double[numNodes];
+    java.util.Arrays.fill(forward, Double.NEGATIVE_INFINITY);
+    forward[startIdx] = 0;
+
+    for (int i : topSorted) {
+      if (forward[i] == Double.NEGATIVE_INFINITY) {
+        continue;
+      }
+      for (int e = edgeOffsets[i]; e < edgeOffsets[i+1]; e++) {
+        int j = edgeEnds[e];
+        forward[j] = logAdd(forward[j], forward[i] - posteriorScale * edges[e].getCombinedScore(lmScale));
+      }
+    }
+    return forward;
+  }
+
+  // backwardLogScores
+  // For each node, the log of the summed probability of all paths from it
+  // to endIdx (Double.NEGATIVE_INFINITY if endIdx cannot be reached)
+  private double[] backwardLogScores(double lmScale, double posteriorScale) {
+    double[] backward = new double[numNodes];
+    java.util.Arrays.fill(backward, Double.NEGATIVE_INFINITY);
+    backward[endIdx] = 0;
+
+    for (int k = topSorted.length - 1; k >= 0; k--) {
+      int i = topSorted[k];
+      for (int e = edgeOffsets[i]; e < edgeOffsets[i+1]; e++) {
+        int j = edgeEnds[e];
+        if (backward[j] != Double.NEGATIVE_INFINITY) {
+          backward[i] = logAdd(backward[i], backward[j] - posteriorScale * edges[e].getCombinedScore(lmScale));
+        }
+      }
+    }
+    return backward;
+  }
+
+  // collectWordArcs
+  // Adds the label and (start, end, posterior) of every word edge with
+  // posterior at least MIN_POSTERIOR to labels and arcs.  Multiwords are
+  // split into their words, sharing the edge's time span evenly, so
+  // "going_to" competes with "going" and "to" as addWord sees them
+  private void collectWordArcs(double lmScale, double posteriorScale, java.util.ArrayList<String> labels,
+                               java.util.ArrayList<double[]> arcs) {
+    double[] forward = forwardLogScores(lmScale, posteriorScale);
+    double[] backward = backwardLogScores(lmScale, posteriorScale);
+    double total = forward[endIdx];
+
+    for (int i : topSorted) {
+      if (forward[i] == Double.NEGATIVE_INFINITY) {
+        continue;
+      }
+      for (int e = edgeOffsets[i]; e < edgeOffsets[i+1]; e++) {
+        int j = edgeEnds[e];
+        Edge edge = edges[e];
+        if (!edge.getLabel().equals("-silence-")) {
+          double posterior = Math.exp(forward[i] - posteriorScale * edge.getCombinedScore(lmScale)
+                                      + backward[j] - total);
+          if (posterior >= MIN_POSTERIOR) {
+            String[] parts = edge.getLabel().split("_");
+            double step = (nodeTimes[j] - nodeTimes[i]) / parts.length;
+            for (int p = 0; p < parts.length; p++) {
+              labels.add(parts[p]);
+              arcs.add(new double[] {nodeTimes[i] + p * step, nodeTimes[i] + (p + 1) * step, posterior});
+            }
+          }
+        }
+      }
+    }
+  }
+
+  // logAdd
+  // Returns log(exp(a) + exp(b)) without overflow
+  private static double logAdd(double a, double b) {
+    if (a < b) {
+      double swap = a;
+      a = b;
+      b = swap;
+    }
+    if (b == Double.NEGATIVE_INFINITY) {
+      return a;
+    }
+    return a + Math.log1p(Math.exp(b - a));
+  }
+
   // shortestPath
   // Finds the Shortest Path through the DAG
-  // alters the parent and distance arrays
+  // alters the parent and distance arrays; parent[j] is the edge the best
+  // path to node j arrives by, since several edges may join the same nodes
   private void shortestPath(double[] distance, int[] parent, double lmScale) {
     //initialize single source
     for (int i = startIdx; i <= endIdx; i++) {
       distance[i] = java.lang.Double.POSITIVE_INFINITY;
-      parent[i] = 0;
+      parent[i] = -1;
     }
 
     distance[startIdx] = 0;
 
     for (int i : topSorted) {
-      for (int j = startIdx; j <= endIdx; j++) {
-        if (adjMatrix[i][j] != null) {
-          // Relax
-          if (distance[j] > distance[i] + adjMatrix[i][j].getCombinedScore(lmScale)) {
-            distance[j] = distance[i] + adjMatrix[i][j].getCombinedScore(lmScale);
-            parent[j] = i;
-          }
+      for (int e = edgeOffsets[i]; e < edgeOffsets[i+1]; e++) {
+        int j = edgeEnds[e];
+        // Relax
+        if (distance[j] > distance[i] + edges[e].getCombinedScore(lmScale)) {
+          distance[j] = distance[i] + edges[e].getCombinedScore(lmScale);
+          parent[j] = e;
         }
       }
     }
@@ -442,13 +1199,13 @@ public class Lattice {
 
   // Backtrack function for decode
   // Walks backwards along a path to reach an earlier node
-  // Returns the new path
+  // Returns the edges of the path, first to last
   private int[] backtrack(int endNode, int[] parent) {
     java.util.ArrayList<Integer> path = new java.util.ArrayList<Integer>();
 
-    while (endNode != 0) {
-      path.add(0, endNode);
-      endNode = parent[endNode];
+    while (endNode != startIdx) {
+      path.add(0, parent[endNode]);
+      endNode = edgeStarts[parent[endNode]];
     }
 
     int[] finalPath = convertArray(path);
@@ -456,17 +1213,39 @@ public class Lattice {
     return finalPath;
   }
 
+  // sortTopologically
+  // The DFS behind topologicalSort, for when the edges are already in place
+  private int[] sortTopologically() {
+    boolean[] visited = new boolean[numNodes];
+    java.util.ArrayList<Integer> sorted = new java.util.ArrayList<Integer>();
+
+    // initialize
+    for (int i = startIdx; i <= endIdx; i++) {
+      visited[i] = false;
+    }
+    dfsTime = 0;
+
+    // discover nodes
+    for (int i = startIdx; i <= endIdx; i++) {
+      if (visited[i] == false) {
+        dfsVisit(i, visited, sorted);
+      }
+    }
+
+    int[] sortedArray = convertArray(sorted);
+
+    return sortedArray;
+  }
+
   // dfsVisit used for Depth First Search
   // discovers nodes and marks as finished
   // adds them to a sorted array as they are marked
   private void dfsVisit(int i, boolean[] visited, java.util.ArrayList<Integer> sorted) {
     dfsTime += 1;
 
-    for (int j = startIdx; j <= endIdx; j++) {
-      if (adjMatrix[i][j] != null) {
-        if (visited[j] == false) {
-          dfsVisit(j, visited, sorted);
-        }
+    for (int e = edgeOffsets[i]; e < edgeOffsets[i+1]; e++) {
+      if (visited[edgeEnds[e]] == false) {
+        dfsVisit(edgeEnds[e], visited, sorted);
       }
     }
 
@@ -486,4 +1265,129 @@ public class Lattice {
 
     return array;
   }
+
+  // LineReader
+  // Reads a lattice file line by line while counting bytes, so a lazy
+  // lattice can remember where its node and edge sections start
+  private static class LineReader {
+    private java.io.InputStream in;  // The lattice file
+    private byte[] buffer;           // Bytes read from in but not yet consumed
+    private int position, limit;     // Next unconsumed byte, and end of valid bytes
+    private long offset;             // File offset of buffer[position]
+    private String filename;         // For error messages
+
+    // LineReader
+    // Opens filename positioned at byte offset
+    LineReader(String filename, long offset) throws java.io.FileNotFoundException {
+      this.in = new java.io.FileInputStream(filename);
+      this.buffer = new byte[1 << 16];
+      this.filename = filename;
+      try {
+        long skipped = 0;
+        while (skipped < offset) {
+          long n = in.skip(offset - skipped);
+          if (n <= 0) {
+            throw new java.util.NoSuchElementException("Unexpected end of " + filename);
+          }
+          skipped += n;
+        }
+      } catch (java.io.IOException e) {
+        close();
+        throw new java.io.UncheckedIOException(e);
+      }
+      this.offset = offset;
+    }
+
+    // getOffset
+    // Returns the file offset of the next unread line
+    long getOffset() {
+      return offset;
+    }
+
+    // nextFields
+    // Returns the whitespace-separated fields of the next non-blank line,
+    // which must start with keyword and have at least numFields fields
+    String[] nextFields(String keyword, int numFields) {
+      String[] fields;
+      do {
+        String line = nextLine();
+        if (line == null) {
+          throw new java.util.NoSuchElementException("Missing " + keyword + " line in " + filename);
+        }
+        fields = line.trim().split("\\s+");
+      } while (fields[0].isEmpty());
+      if (!fields[0].equals(keyword) || fields.length < numFields) {
+        throw new java.util.InputMismatchException("Expected " + keyword + " line in " + filename);
+      }
+      return fields;
+    }
+
+    // nextLine
+    // Returns the next line without its terminator, or null at end of file
+    private String nextLine() {
+      java.io.ByteArrayOutputStream partial = null;
+      while (true) {
+        if (position == limit && !fill()) {
+          if (partial == null || partial.size() == 0) {
+            return null;
+          }
+          return decode(partial.toByteArray(), 0, partial.size());
+        }
+        int start = position;
+        while (position < limit && buffer[position] != '\n') {
+          position++;
+        }
+        boolean complete = position < limit;
+        int length = position - start;
+        if (complete) {
+          position++;
+        }
+        offset += position - start;
+        if (complete && partial == null) {
+          return decode(buffer, start, length);
+        }
+        if (partial == null) {
+          partial = new java.io.ByteArrayOutputStream();
+        }
+        partial.write(buffer, start, length);
+        if (complete) {
+          return decode(partial.toByteArray(), 0, partial.size());
+        }
+      }
+    }
+
+    // decode
+    // Decodes UTF-8 bytes; every JVM supports UTF-8, so the exception
+    // cannot happen
+    private String decode(byte[] bytes, int start, int length) {
+      try {
+        return new String(bytes, start, length, "UTF-8");
+      } catch (java.io.UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    // fill
+    // Refills the buffer; returns false at end of file
+    private boolean fill() {
+      try {
+        int n = in.read(buffer, 0, buffer.length);
+        position = 0;
+        limit = Math.max(n, 0);
+        return n > 0;
+      } catch (java.io.IOException e) {
+        throw new java.io.UncheckedIOException(e);
+      }
+    }
+
+    // close
+    // Closes the file
+    void close() {
+      try {
+        in.close();
+      } catch (java.io.IOException e) {
+        // Nothing was written, so there is nothing to lose
+      }
+    }
+  }
 }
@@ -0,0 +1,640 @@
+/*
+ * LatticeDeterminizer.java
+ *
+ * Weighted determinization and minimization of a lattice over the tropical
+ * semiring (path weight = sum of combined scores, best path = minimum), used
+ * by Lattice.determinize
+ *
+ * The lattice is first rewritten the way Hypothesis.addWord reads it:
+ * -silence- edges become epsilon arcs and a multiword edge such as going_to
+ * becomes a chain of single-word arcs.  Subset construction with residual
+ * weights then gives an automaton with exactly one path per distinct word
+ * sequence, carrying that sequence's best score.  Weight pushing followed by
+ * merging of states with identical futures makes it minimal.
+ *
+ * The result is handed back as a lattice: a single end node reached from
+ * every final state by a -silence- edge carrying the final weight, and nodes
+ * numbered in topological order.  Two nodes may be joined by several edges
+ * with different words.
+ *
+ */
+
+class LatticeDeterminizer {
+    private static final String SILENCE = "-silence-";
+    private static final int EPSILON = -1;            // Label of arcs that spell no word
+    private static final int MAX_SUBSET_FACTOR = 64;  // Stored subset entries allowed per state
+    private static final int MAX_ARC_FACTOR = 2;      // Unminimized arcs allowed per result arc
+
+    // Input: the rewritten lattice
+    private int start, end;                           // Start and end nodes
+    private int numNodes;                             // Original plus multiword nodes
+    private double[] times = new double[16];          // Time of each node
+    private int numArcs;
+    private int[] arcFrom = new int[16], arcTo = new int[16], arcLabel = new int[16];
+    private long[] arcWeight = new long[16];
+    private java.util.HashMap<String, Integer> symbols = new java.util.HashMap<String, Integer>();
+    private java.util.ArrayList<String> words = new java.util.ArrayList<String>();
+
+    // Scratch space for closure and epsilonClosure, indexed by node
+    private long[] closureBest;                       // Smallest residual found
+    private int[] closureMark;                        // Round in which the node was found
+    private int[] closureNodes;                       // Nodes found this round
+    private int closureRound;
+    private long[] epsilonBest;                       // Smallest epsilon path weight found
+    private int[] epsilonMark;                        // Round in which the node was found
+    private int[] epsilonFound;                       // Nodes found this round
+    private int epsilonRound;
+    private int[][] epsilonNodes;                     // Each node's epsilon closure, once computed
+    private long[][] epsilonDistances;                // Weights to the nodes in epsilonNodes
+    private int[] nodeAtPosition;                     // Inverse of the topological positions
+
+    // Output: the minimal lattice
+    private double[] resultTimes;
+    private int[] resultFrom, resultTo;
+    private Edge[] resultEdges;
+
+    // LatticeDeterminizer
+    // Preconditions:
+    //     - nodeTimes holds the lattice's node times; start and end index it
+    // Post-conditions
+    //     - A determinizer with the lattice's nodes and no edges yet
+    LatticeDeterminizer(double[] nodeTimes, int start, int end) {
+        this.start = start;
+        this.end = end;
+        for( double time : nodeTimes ) {
+            addNode(time);
+        }
+    }
+
+    // addEdge
+    // Preconditions:
+    //     - from, to, label and weight describe a lattice edge, weight being its
+    //       combined score
+    // Post-conditions
+    //     - The edge is added as an epsilon arc (-silence-), a single-word arc,
+    //       or a chain of single-word arcs through new nodes (multiwords; the
+    //       first arc carries the weight)
+    void addEdge(int from, int to, String label, long weight) {
+        if( label.equals(SILENCE) ) {
+            addArc(from, to, EPSILON, weight);
+            return;
+        }
+        String[] parts = label.split("_");
+        int previous = from;
+        for( int p=0; p<parts.length; p++ ) {
+            int next = to;
+            if( p < parts.length - 1 ) {
+                next = addNode(times[from] + (times[to] - times[from]) * (p + 1) / parts.length);
+            }
+            addArc(previous, next, symbol(parts[p]), p == 0 ? weight : 0);
+            previous = next;
+        }
+    }
+
+    // determinize
+    // Preconditions:
+    //     - Every edge has been added; end is reachable from start
+    //     - maxStates and maxArcs bound the number of determinized states and arcs
+    // Post-conditions
+    //     - Returns true and fills in the result if determinization stayed within
+    //       maxStates states, MAX_SUBSET_FACTOR * maxStates stored subset entries
+    //       and MAX_ARC_FACTOR * maxArcs arcs, and the result has at most
+    //       maxStates nodes and maxArcs arcs; returns false as soon as any of
+    //       these is exceeded
+    boolean determinize(int maxStates, int maxArcs) {
+        // Only arcs on some start-to-end path matter
+        int[][] out = adjacency(true);
+        int[][] in = adjacency(false);
+        boolean[] live = reach(out, start, true);
+        boolean[] coLive = reach(in, end, false);
+        for( int n=0; n<numNodes; n++ ) {
+            live[n] = live[n] && coLive[n];
+        }
+        int[] position = topologicalPositions(out, live);
+        nodeAtPosition = new int[numNodes];
+        for( int n=0; n<numNodes; n++ ) {
+            if( live[n] ) {
+                nodeAtPosition[position[n]] = n;
+            }
+        }
+        closureBest = new long[numNodes];
+        closureMark = new int[numNodes];
+        closureNodes = new int[numNodes];
+        epsilonBest = new long[numNodes];
+        epsilonMark = new int[numNodes];
+        epsilonFound = new int[numNodes];
+        epsilonNodes = new int[numNodes][];
+        epsilonDistances = new long[numNodes][];
+
+        // Nodes worth keeping in a subset: the end, and nodes with a word arc
+        boolean[] useful = new boolean[numNodes];
+        for( int a=0; a<numArcs; a++ ) {
+            if( arcLabel[a] != EPSILON && live[arcFrom[a]] && live[arcTo[a]] ) {
+                useful[arcFrom[a]] = true;
+            }
+        }
+        useful[end] = true;
+
+        // Subset construction: each state is a sorted set of (node, residual)
+        java.util.ArrayList<int[]> stateNodes = new java.util.ArrayList<int[]>();
+        java.util.ArrayList<long[]> stateResiduals = new java.util.ArrayList<long[]>();
+        java.util.HashMap<String, Integer> stateIndex = new java.util.HashMap<String, Integer>();
+        java.util.ArrayList<long[]> dfaArcs = new java.util.ArrayList<long[]>(); // from, label, to, weight
+        long storedEntries = 0;
+
+        Object[] initial = closure(new int[] {start}, new long[] {0}, 1, out, live, useful, position);
+        stateNodes.add((int[]) initial[0]);
+        stateResiduals.add((long[]) initial[1]);
+        stateIndex.put(key((int[]) initial[0], (long[]) initial[1]), 0);
+
+        int[] labelMark = new int[words.size()];      // Round in which the word was last seen
+        int[] labelStart = new int[words.size()];     // Where the word's arcs start in targets
+        int[] labelCount = new int[words.size()];
+        int[] labelsSeen = new int[words.size()];
+        int[] seedMark = new int[numNodes];           // Round in which the node was last a target
+        long[] seedBest = new long[numNodes];
+        int round = 0;
+        for( int s=0; s<stateNodes.size(); s++ ) {
+            int[] nodes = stateNodes.get(s);
+            long[] residuals = stateResiduals.get(s);
+
+            // Gather the targets of every word arc, by word (a counting sort)
+            round++;
+            int numLabels = 0;
+            int numTargets = 0;
+            for( int k=0; k<nodes.length; k++ ) {
+                for( int a : out[nodes[k]] ) {
+                    if( arcLabel[a] == EPSILON || !live[arcTo[a]] ) {
+                        continue;
+                    }
+                    if( labelMark[arcLabel[a]] != round ) {
+                        labelMark[arcLabel[a]] = round;
+                        labelCount[arcLabel[a]] = 0;
+                        labelsSeen[numLabels++] = arcLabel[a];
+                    }
+                    labelCount[arcLabel[a]]++;
+                    numTargets++;
+                }
+            }
+            java.util.Arrays.sort(labelsSeen, 0, numLabels);
+            int offset = 0;
+            for( int l=0; l<numLabels; l++ ) {
+                labelStart[labelsSeen[l]] = offset;
+                offset += labelCount[labelsSeen[l]];
+                labelCount[labelsSeen[l]] = 0;
+            }
+            int[] targets = new int[numTargets];
+            long[] targetWeights = new long[numTargets];
+            for( int k=0; k<nodes.length; k++ ) {
+                for( int a : out[nodes[k]] ) {
+                    if( arcLabel[a] == EPSILON || !live[arcTo[a]] ) {
+                        continue;
+                    }
+                    int t = labelStart[arcLabel[a]] + labelCount[arcLabel[a]]++;
+                    targets[t] = arcTo[a];
+                    targetWeights[t] = residuals[k] + arcWeight[a];
+                }
+            }
+
+            for( int l=0; l<numLabels; l++ ) {
+                // Each target node once, with its smallest weight, in node order
+                round++;
+                int first = labelStart[labelsSeen[l]];
+                int numSeeds = 0;
+                int[] seeds = new int[labelCount[labelsSeen[l]]];
+                for( int t=first; t<first+seeds.length; t++ ) {
+                    if( seedMark[targets[t]] != round ) {
+                        seedMark[targets[t]] = round;
+                        seedBest[targets[t]] = targetWeights[t];
+                        seeds[numSeeds++] = targets[t];
+                    } else if( targetWeights[t] < seedBest[targets[t]] ) {
+                        seedBest[targets[t]] = targetWeights[t];
+                    }
+                }
+                java.util.Arrays.sort(seeds, 0, numSeeds);
+                long[] seedResiduals = new long[numSeeds];
+                for( int k=0; k<numSeeds; k++ ) {
+                    seedResiduals[k] = seedBest[seeds[k]];
+                }
+                Object[] next = closure(seeds, seedResiduals, numSeeds, out, live, useful, position);
+                int[] nextNodes = (int[]) next[0];
+                long[] nextResiduals = (long[]) next[1];
+
+                // The arc takes the smallest weight; the state keeps the rest
+                long weight = Long.MAX_VALUE;
+                for( long r : nextResiduals ) {
+                    weight = Math.min(weight, r);
+                }
+                for( int k=0; k<nextResiduals.length; k++ ) {
+                    nextResiduals[k] -= weight;
+                }
+
+                String nextKey = key(nextNodes, nextResiduals);
+                Integer target = stateIndex.get(nextKey);
+                if( target == null ) {
+                    target = stateNodes.size();
+                    storedEntries += nextNodes.length;
+                    if( target >= maxStates || storedEntries > (long) MAX_SUBSET_FACTOR * maxStates ) {
+                        return false;
+                    }
+                    stateNodes.add(nextNodes);
+                    stateResiduals.add(nextResiduals);
+                    stateIndex.put(nextKey, target);
+                }
+                dfaArcs.add(new long[] {s, labelsSeen[l], target, weight});
+                if( dfaArcs.size() > (long) MAX_ARC_FACTOR * maxArcs ) {
+                    return false;
+                }
+            }
+        }
+
+        // A super-final state, reached by -silence- carrying each final weight
+        int numStates = stateNodes.size() + 1;
+        int superFinal = numStates - 1;
+        double[] stateTimes = new double[numStates];
+        for( int s=0; s<superFinal; s++ ) {
+            int[] nodes = stateNodes.get(s);
+            long[] residuals = stateResiduals.get(s);
+            int best = 0;
+            for( int k=0; k<nodes.length; k++ ) {
+                if( residuals[k] < residuals[best] ) {
+                    best = k;
+                }
+                if( nodes[k] == end ) {
+                    dfaArcs.add(new long[] {s, symbol(SILENCE), superFinal, residuals[k]});
+                }
+            }
+            stateTimes[s] = times[nodes[best]];
+        }
+        stateTimes[superFinal] = times[end];
+
+        return minimize(numStates, superFinal, stateTimes, dfaArcs, maxStates, maxArcs);
+    }
+
+    // Accessors for the result, valid after determinize returns true
+
+    double[] getNodeTimes() {
+        return resultTimes;
+    }
+
+    int[] getEdgeStarts() {
+        return resultFrom;
+    }
+
+    int[] getEdgeEnds() {
+        return resultTo;
+    }
+
+    Edge[] getEdges() {
+        return resultEdges;
+    }
+
+    // PRIVATE HELPER FUNCTIONS
+
+    // minimize
+    // Pushes weights towards the start, merges states with identical futures
+    // and stores the result, numbered in topological order
+    // Returns false, storing nothing, if the result has more than maxNodes nodes
+    // or maxArcs arcs
+    private boolean minimize(int numStates, int superFinal, double[] stateTimes, java.util.ArrayList<long[]> dfaArcs,
+                             int maxNodes, int maxArcs) {
+        java.util.ArrayList<java.util.ArrayList<long[]>> arcsFrom = new java.util.ArrayList<java.util.ArrayList<long[]>>();
+        int[] inDegree = new int[numStates];
+        for( int s=0; s<numStates; s++ ) {
+            arcsFrom.add(new java.util.ArrayList<long[]>());
+        }
+        for( long[] arc : dfaArcs ) {
+            arcsFrom.get((int) arc[0]).add(arc);
+            inDegree[(int) arc[2]]++;
+        }
+        int[] order = kahn(numStates, arcsFrom, inDegree);
+
+        // Weight pushing: potential = best weight from the state to the end
+        long[] potential = new long[numStates];
+        for( int k=numStates-1; k>=0; k-- ) {
+            int s = order[k];
+            if( s == superFinal ) {
+                continue;
+            }
+            potential[s] = Long.MAX_VALUE;
+            for( long[] arc : arcsFrom.get(s) ) {
+                potential[s] = Math.min(potential[s], arc[3] + potential[(int) arc[2]]);
+            }
+        }
+        for( int s=0; s<numStates; s++ ) {
+            for( long[] arc : arcsFrom.get(s) ) {
+                arc[3] += potential[(int) arc[2]] - potential[s];
+                if( s == 0 ) {
+                    arc[3] += potential[0];   // The start has nowhere else to keep it
+                }
+            }
+        }
+
+        // Merge states with the same outgoing (word, weight, merged target)s
+        int[] classOf = new int[numStates];
+        java.util.HashMap<String, Integer> classIndex = new java.util.HashMap<String, Integer>();
+        java.util.ArrayList<Integer> representatives = new java.util.ArrayList<Integer>();
+        for( int k=numStates-1; k>=0; k-- ) {
+            int s = order[k];
+            StringBuilder signature = new StringBuilder(s == superFinal ? "F" : (s == 0 ? "S" : ""));
+            java.util.ArrayList<long[]> arcs = arcsFrom.get(s);
+            java.util.Collections.sort(arcs, new java.util.Comparator<long[]>() {
+                public int compare(long[] a, long[] b) {
+                    return Long.compare(a[1], b[1]);
+                }
+            });
+            for( long[] arc : arcs ) {
+                signature.append(arc[1]).append(':').append(arc[3]).append(':').append(classOf[(int) arc[2]]).append(';');
+            }
+            Integer c = classIndex.get(signature.toString());
+            if( c == null ) {
+                c = representatives.size();
+                classIndex.put(signature.toString(), c);
+                representatives.add(s);
+            }
+            classOf[s] = c;
+        }
+
+        // Build the minimal graph
+        int numClasses = representatives.size();
+        java.util.ArrayList<Double> nodeTimes = new java.util.ArrayList<Double>();
+        for( int c=0; c<numClasses; c++ ) {
+            nodeTimes.add(stateTimes[representatives.get(c)]);
+        }
+        java.util.ArrayList<int[]> edges = new java.util.ArrayList<int[]>();   // from, to, word (-1 = silence)
+        java.util.ArrayList<Long> weights = new java.util.ArrayList<Long>();
+        for( int c=0; c<numClasses; c++ ) {
+            for( long[] arc : arcsFrom.get(representatives.get(c)) ) {
+                edges.add(new int[] {c, classOf[(int) arc[2]], (int) arc[1]});
+                weights.add(arc[3]);
+            }
+        }
+
+        // Number nodes topologically, so the start is 0 and the end is last
+        int numResultNodes = nodeTimes.size();
+        if( numResultNodes > maxNodes || edges.size() > maxArcs ) {
+            return false;
+        }
+        java.util.ArrayList<java.util.ArrayList<long[]>> resultArcs = new java.util.ArrayList<java.util.ArrayList<long[]>>();
+        int[] resultInDegree = new int[numResultNodes];
+        for( int n=0; n<numResultNodes; n++ ) {
+            resultArcs.add(new java.util.ArrayList<long[]>());
+        }
+        for( int[] edge : edges ) {
+            resultArcs.get(edge[0]).add(new long[] {edge[0], 0, edge[1]});
+            resultInDegree[edge[1]]++;
+        }
+        int[] resultOrder = kahn(numResultNodes, resultArcs, resultInDegree);
+        int[] number = new int[numResultNodes];
+        for( int k=0; k<numResultNodes; k++ ) {
+            number[resultOrder[k]] = k;
+        }
+
+        resultTimes = new double[numResultNodes];
+        for( int n=0; n<numResultNodes; n++ ) {
+            resultTimes[number[n]] = nodeTimes.get(n);
+        }
+        resultFrom = new int[edges.size()];
+        resultTo = new int[edges.size()];
+        resultEdges = new Edge[edges.size()];
+        for( int e=0; e<edges.size(); e++ ) {
+            int[] edge = edges.get(e);
+            resultFrom[e] = number[edge[0]];
+            resultTo[e] = number[edge[1]];
+            String label = edge[2] == EPSILON ? SILENCE : words.get(edge[2]);
+            resultEdges[e] = new Edge(label, (int) (long) weights.get(e), 0);
+        }
+        return true;
+    }
+
+    // closure
+    // Extends a weighted set of distinct nodes (the first numSeeds of seeds,
+    // with their residuals) along epsilon arcs, keeping each node's smallest
+    // residual, and drops nodes that lead to no word and are not the end
+    // Returns {int[] nodes, long[] residuals}, sorted by node
+    private Object[] closure(int[] seeds, long[] seedResiduals, int numSeeds, int[][] out, boolean[] live,
+                             boolean[] useful, int[] position) {
+        closureRound++;
+        int count = 0;
+        for( int k=0; k<numSeeds; k++ ) {
+            if( epsilonNodes[seeds[k]] == null ) {
+                epsilonClosure(seeds[k], out, live, useful, position);
+            }
+            int[] reached = epsilonNodes[seeds[k]];
+            long[] distances = epsilonDistances[seeds[k]];
+            for( int j=0; j<reached.length; j++ ) {
+                int node = reached[j];
+                long residual = seedResiduals[k] + distances[j];
+                if( closureMark[node] != closureRound ) {
+                    closureMark[node] = closureRound;
+                    closureBest[node] = residual;
+                    closureNodes[count++] = node;
+                } else if( residual < closureBest[node] ) {
+                    closureBest[node] = residual;
+                }
+            }
+        }
+
+        int[] nodes = java.util.Arrays.copyOf(closureNodes, count);
+        java.util.Arrays.sort(nodes);
+        long[] residuals = new long[count];
+        for( int k=0; k<count; k++ ) {
+            residuals[k] = closureBest[nodes[k]];
+        }
+        return new Object[] {nodes, residuals};
+    }
+
+    // epsilonClosure
+    // Stores in epsilonNodes and epsilonDistances the useful nodes that origin
+    // reaches along epsilon arcs (itself included, if useful), sorted by node,
+    // with the smallest weight of an epsilon path to each
+    private void epsilonClosure(int origin, int[][] out, boolean[] live, boolean[] useful, int[] position) {
+        // Find every node origin reaches; epsilonMark says which were found this round
+        epsilonRound++;
+        int count = 0;
+        epsilonMark[origin] = epsilonRound;
+        epsilonBest[origin] = 0;
+        epsilonFound[count++] = origin;
+        for( int k=0; k<count; k++ ) {
+            for( int a : out[epsilonFound[k]] ) {
+                int next = arcTo[a];
+                if( arcLabel[a] == EPSILON && live[next] && epsilonMark[next] != epsilonRound ) {
+                    epsilonMark[next] = epsilonRound;
+                    epsilonBest[next] = Long.MAX_VALUE;
+                    epsilonFound[count++] = next;
+                }
+            }
+        }
+
+        // Relax them in topological order so every weight is final when used
+        int[] order = new int[count];
+        for( int k=0; k<count; k++ ) {
+            order[k] = position[epsilonFound[k]];
+        }
+        java.util.Arrays.sort(order);
+        for( int k=0; k<count; k++ ) {
+            int node = nodeAtPosition[order[k]];
+            long weight = epsilonBest[node];
+            for( int a : out[node] ) {
+                if( arcLabel[a] == EPSILON && live[arcTo[a]] && weight + arcWeight[a] < epsilonBest[arcTo[a]] ) {
+                    epsilonBest[arcTo[a]] = weight + arcWeight[a];
+                }
+            }
+        }
+
+        int kept = 0;
+        for( int k=0; k<count; k++ ) {
+            if( useful[epsilonFound[k]] ) {
+                order[kept++] = epsilonFound[k];
+            }
+        }
+        int[] nodes = java.util.Arrays.copyOf(order, kept);
+        java.util.Arrays.sort(nodes);
+        long[] distances = new long[kept];
+        for( int k=0; k<kept; k++ ) {
+            distances[k] = epsilonBest[nodes[k]];
+        }
+        epsilonNodes[origin] = nodes;
+        epsilonDistances[origin] = distances;
+    }
+
+    // key
+    // The hash key of a determinized state
+    private static String key(int[] nodes, long[] residuals) {
+        StringBuilder key = new StringBuilder();
+        for( int k=0; k<nodes.length; k++ ) {
+            key.append(nodes[k]).append(':').append(residuals[k]).append(',');
+        }
+        return key.toString();
+    }
+
+    // adjacency
+    // For each node, the indices of its outgoing (or incoming) arcs
+    private int[][] adjacency(boolean outgoing) {
+        int[] degree = new int[numNodes];
+        for( int a=0; a<numArcs; a++ ) {
+            degree[outgoing ? arcFrom[a] : arcTo[a]]++;
+        }
+        int[][] arcs = new int[numNodes][];
+        for( int n=0; n<numNodes; n++ ) {
+            arcs[n] = new int[degree[n]];
+            degree[n] = 0;
+        }
+        for( int a=0; a<numArcs; a++ ) {
+            int n = outgoing ? arcFrom[a] : arcTo[a];
+            arcs[n][degree[n]++] = a;
+        }
+        return arcs;
+    }
+
+    // reach
+    // Marks the nodes reachable from origin along the given arcs
+    private boolean[] reach(int[][] arcs, int origin, boolean forward) {
+        boolean[] reached = new boolean[numNodes];
+        java.util.ArrayDeque<Integer> stack = new java.util.ArrayDeque<Integer>();
+        reached[origin] = true;
+        stack.push(origin);
+        while( !stack.isEmpty() ) {
+            int node = stack.pop();
+            for( int a : arcs[node] ) {
+                int next = forward ? arcTo[a] : arcFrom[a];
+                if( !reached[next] ) {
+                    reached[next] = true;
+                    stack.push(next);
+                }
+            }
+        }
+        return reached;
+    }
+
+    // topologicalPositions
+    // Each live node's position in a topological order of the live arcs
+    private int[] topologicalPositions(int[][] out, boolean[] live) {
+        int[] inDegree = new int[numNodes];
+        for( int a=0; a<numArcs; a++ ) {
+            if( live[arcFrom[a]] && live[arcTo[a]] ) {
+                inDegree[arcTo[a]]++;
+            }
+        }
+        int[] position = new int[numNodes];
+        java.util.ArrayDeque<Integer> ready = new java.util.ArrayDeque<Integer>();
+        for( int n=0; n<numNodes; n++ ) {
+            if( live[n] && inDegree[n] == 0 ) {
+                ready.add(n);
+            }
+        }
+        int next = 0;
+        while( !ready.isEmpty() ) {
+            int node = ready.poll();
+            position[node] = next++;
+            for( int a : out[node] ) {
+                if( live[arcTo[a]] && --inDegree[arcTo[a]] == 0 ) {
+                    ready.add(arcTo[a]);
+                }
+            }
+        }
+        return position;
+    }
+
+    // kahn
+    // A topological order of a graph given as {from, label, to, ...} arc lists
+    private static int[] kahn(int numStates, java.util.ArrayList<java.util.ArrayList<long[]>> arcsFrom, int[] inDegree) {
+        int[] remaining = inDegree.clone();
+        int[] order = new int[numStates];
+        java.util.ArrayDeque<Integer> ready = new java.util.ArrayDeque<Integer>();
+        for( int s=0; s<numStates; s++ ) {
+            if( remaining[s] == 0 ) {
+                ready.add(s);
+            }
+        }
+        int next = 0;
+        while( !ready.isEmpty() ) {
+            int s = ready.poll();
+            order[next++] = s;
+            for( long[] arc : arcsFrom.get(s) ) {
+                if( --remaining[(int) arc[2]] == 0 ) {
+                    ready.add((int) arc[2]);
+                }
+            }
+        }
+        return order;
+    }
+
+    // addNode
+    // Adds a node at the given time and returns its index
+    private int addNode(double time) {
+        if( numNodes == times.length ) {
+            times = java.util.Arrays.copyOf(times, 2 * numNodes);
+        }
+        times[numNodes] = time;
+        return numNodes++;
+    }
+
+    // addArc
+    // Adds an arc to the rewritten lattice
+    private void addArc(int from, int to, int label, long weight) {
+        if( numArcs == arcFrom.length ) {
+            arcFrom = java.util.Arrays.copyOf(arcFrom, 2 * numArcs);
+            arcTo = java.util.Arrays.copyOf(arcTo, 2 * numArcs);
+            arcLabel = java.util.Arrays.copyOf(arcLabel, 2 * numArcs);
+            arcWeight = java.util.Arrays.copyOf(arcWeight, 2 * numArcs);
+        }
+        arcFrom[numArcs] = from;
+        arcTo[numArcs] = to;
+        arcLabel[numArcs] = label;
+        arcWeight[numArcs] = weight;
+        numArcs++;
+    }
+
+    // symbol
+    // The integer id of a word
+    private int symbol(String word) {
+        Integer id = symbols.get(word);
+        if( id == null ) {
+            id = words.size();
+            symbols.put(word, id);
+            words.add(word);
+        }
+        return id;
+    }
+}
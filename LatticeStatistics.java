@@ -0,0 +1,124 @@
+/*
+ * LatticeStatistics.java
+ *
+ * Defines a new "LatticeStatistics" type, which holds the statistics that
+ * Lattice.computeStatistics gathers in a single sweep over the edges:
+ * the path count, the density, where given words occur, which words
+ * overlap given times, and how many nodes have each out-degree
+ *
+ * Note that the LatticeStatistics type is immutable: after the fields are
+ * initialized in the constructor, they cannot be modified.
+ *
+ */
+
+public class LatticeStatistics {
+
+    // The statistics that cost extra work in the sweep and so must be asked for
+    public enum Metric {
+        PATH_COUNT,       // Number of distinct paths from start to end
+        DENSITY,          // Non -silence- words per second
+        BRANCHING_FACTOR  // Histogram of node out-degrees
+    }
+
+    private java.math.BigInteger numPaths;    // null unless PATH_COUNT was requested
+    private int nonSilenceWords;              // -1 unless DENSITY was requested
+    private double density;                   // NaN unless DENSITY was requested
+    private int[] branchingHistogram;         // null unless BRANCHING_FACTOR was requested
+    private String[] words;                   // The words whose hits were requested
+    private double[][] sortedHits;            // Sorted hit midpoints, parallel to words
+    private double[] times;                   // The times whose words were requested
+    private java.util.ArrayList<java.util.HashSet<String>> wordsAtTimes; // Parallel to times
+
+    // Constructor
+
+    // LatticeStatistics
+    // Preconditions:
+    //     - The arguments are the results computed by Lattice.computeStatistics
+    // Post-conditions
+    //     - The fields are set to the corresponding arguments
+    LatticeStatistics(java.math.BigInteger numPaths, int nonSilenceWords, double density,
+                      int[] branchingHistogram, String[] words, double[][] sortedHits,
+                      double[] times, java.util.ArrayList<java.util.HashSet<String>> wordsAtTimes) {
+        this.numPaths = numPaths;
+        this.nonSilenceWords = nonSilenceWords;
+        this.density = density;
+        this.branchingHistogram = branchingHistogram;
+        this.words = words;
+        this.sortedHits = sortedHits;
+        this.times = times;
+        this.wordsAtTimes = wordsAtTimes;
+        return;
+    }
+
+    // Accessors
+
+    // getNumPaths
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the number of distinct paths from start to end,
+    //       or null if PATH_COUNT was not requested
+    public java.math.BigInteger getNumPaths() {
+        return this.numPaths;
+    }
+
+    // getNonSilenceWords
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the number of edges not labeled -silence- (a multiword
+    //       counts once), or -1 if DENSITY was not requested
+    public int getNonSilenceWords() {
+        return this.nonSilenceWords;
+    }
+
+    // getDensity
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the lattice density, as Lattice.getLatticeDensity defines it,
+    //       or Double.NaN if DENSITY was not requested
+    public double getDensity() {
+        return this.density;
+    }
+
+    // getBranchingHistogram
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns an array whose element d is the number of nodes with
+    //       out-degree d, or null if BRANCHING_FACTOR was not requested
+    public int[] getBranchingHistogram() {
+        return this.branchingHistogram;
+    }
+
+    // getSortedHits
+    // Preconditions:
+    //     - word is one of the words passed to computeStatistics
+    // Post-conditions
+    //     - Returns the midpoint time of every edge labeled word, in ascending
+    //       order, or null if word was not requested
+    public double[] getSortedHits(String word) {
+        for( int i=0; i<words.length; i++ ) {
+            if( words[i].equals(word) ) {
+                return sortedHits[i];
+            }
+        }
+        return null;
+    }
+
+    // getWordsAtTime
+    // Preconditions:
+    //     - time is one of the times passed to computeStatistics
+    // Post-conditions
+    //     - Returns the unique words on edges that span time (empty if time
+    //       is outside the lattice), or null if time was not requested
+    public java.util.HashSet<String> getWordsAtTime(double time) {
+        for( int i=0; i<times.length; i++ ) {
+            if( times[i] == time ) {
+                return wordsAtTimes.get(i);
+            }
+        }
+        return null;
+    }
+}
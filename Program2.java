@@ -30,6 +30,11 @@
  *   outputDir              a directory where output lattices and dot files will
  *                          be written, one for each line in the lattice list
  *
+ * outputDir also holds a checkpoint journal (see Checkpoint.java).  Rerunning
+ * with the same outputDir and lmScale skips the lattices an earlier run
+ * finished and retries the ones that failed, including the one it was
+ * working on when it was killed.
+ *
 */
 
 
@@ -57,82 +62,144 @@ public class Program2 {
             System.exit(1);
         }
 
+        // Lattices finished by an earlier, interrupted run are not redone
+        Checkpoint checkpoint = new Checkpoint(outputDir, lmScale);
+
         double totalWER = 0.0;
         int numFiles = 0;
         while( input.hasNext() ) {
-            numFiles++;
-
             // Read next line in latticeListFilename
             String latticeFilename = input.next();
             String refFilename = input.next();
 
-            // Build the lattice
-            Lattice lattice = new Lattice(latticeFilename);
-            System.out.println("\nUtterance " + lattice.getUtteranceID());
-
-            // Print reference text
-            printReference(refFilename);
-
-            // Decode, print best hypothesis and various statistics
-            Hypothesis hypothesis = lattice.decode(lmScale);
-            System.out.println("Hypothesis: " + hypothesis.getHypothesisString());
-            double WER = hypothesis.computeWER(refFilename);
-            System.out.println("WER : " + new java.text.DecimalFormat("0.000").format(WER));
-            totalWER += WER;
-            System.out.println("Number of unique paths: " + lattice.countAllPaths());
-            System.out.println("Lattice density: " + new java.text.DecimalFormat("0.000").format(lattice.getLatticeDensity()));
-            java.util.HashSet<String> words = lattice.uniqueWordsAtTime(0.5);
-            printWordSet(words,outputDir + slash + lattice.getUtteranceID() + ".wordsAtTime");
-            System.out.print("Locations of -silence-: ");
-            lattice.printSortedHits("-silence-");
-            System.out.print("Locations of i: ");
-            lattice.printSortedHits("i");
-
-            // Write lattice to output dir in dot and lattice formats
-            lattice.writeAsDot(outputDir + slash + lattice.getUtteranceID() + ".dot");
-            String latticeOutputFilename = outputDir + slash + lattice.getUtteranceID() + ".lattice";
-            if( latticeOutputFilename.equals(latticeFilename) ) {
-                System.err.println("Error: Output directory must not be the same as the input directory\n");
-                System.exit(5);
+            UtteranceResult result = checkpoint.getCompleted(latticeFilename, refFilename);
+            if( result != null ) {
+                System.out.print(restoredReport(result));
+            } else if( checkpoint.hasCrashed(latticeFilename) ) {
+                System.err.println("Error: Skipping " + latticeFilename + ": it was left unfinished by earlier runs");
+                continue;
+            } else {
+                checkpoint.recordStarted(latticeFilename);
+                try {
+                    result = processUtterance(latticeFilename, refFilename, lmScale, outputDir);
+                } catch( java.io.FileNotFoundException | RuntimeException e ) {
+                    // One bad lattice should not cost the rest of the run
+                    System.err.println("Error: Skipping " + latticeFilename + ": " + e);
+                    checkpoint.recordFailure(latticeFilename, e.toString());
+                    continue;
+                }
+                checkpoint.recordCompleted(latticeFilename, refFilename, result);
             }
-            lattice.saveAsFile(latticeOutputFilename);
+
+            numFiles++;
+            totalWER += result.getWER();
         }
 
         System.out.println("Avg WER = " + totalWER/numFiles);
+        checkpoint.retire();
 
         return;
     }
 
 
-    private static void printReference(String refFilename) {
-        java.util.Scanner refInput = null;
-        try {
-            refInput = new java.util.Scanner(new java.io.File(refFilename));
-        } catch( java.io.FileNotFoundException e ) {
-            System.err.println("Error: Unable to open file " + refFilename);
-            System.exit(1);
+    // processUtterance
+    // Preconditions:
+    //     - latticeFilename and refFilename name one line of the lattice list
+    //     - lmScale and outputDir are the values given on the command line
+    // Post-conditions
+    //     - The lattice is decoded, its report is printed to System.out and its
+    //       dot and lattice files are written to outputDir
+    //     - The WER and statistics of the utterance are returned
+    // Notes:
+    //     - BatchWorker calls this too, so the sharded and serial runs print
+    //       exactly the same text for each utterance
+    //     - Throws java.io.FileNotFoundException if the lattice or ref file is
+    //       missing or an output file cannot be written; a malformed lattice,
+    //       or an output lattice that would overwrite its input, surfaces as a
+    //       RuntimeException.  Nothing here exits, so one bad utterance never
+    //       ends a run
+    static UtteranceResult processUtterance(String latticeFilename, String refFilename, double lmScale, String outputDir)
+            throws java.io.FileNotFoundException {
+        // Build the lattice
+        Lattice lattice = Lattice.open(latticeFilename);
+        String reference = readReference(refFilename);
+        System.out.println("\nUtterance " + lattice.getUtteranceID());
+
+        // Print reference text
+        System.out.println("Reference: " + reference);
+
+        // Decode, print best hypothesis and various statistics
+        Hypothesis hypothesis = lattice.decode(lmScale);
+        System.out.println("Hypothesis: " + hypothesis.getHypothesisString());
+        double WER = hypothesis.computeWER(refFilename);
+        System.out.println("WER : " + new java.text.DecimalFormat("0.000").format(WER));
+        LatticeStatistics stats = lattice.computeStatistics(
+            java.util.EnumSet.of(LatticeStatistics.Metric.PATH_COUNT, LatticeStatistics.Metric.DENSITY),
+            new String[] {"-silence-", "i"}, new double[] {0.5});
+        java.math.BigInteger numPaths = stats.getNumPaths();
+        System.out.println("Number of unique paths: " + numPaths);
+        double density = stats.getDensity();
+        System.out.println("Lattice density: " + new java.text.DecimalFormat("0.000").format(density));
+        printWordSet(stats.getWordsAtTime(0.5),outputDir + slash + lattice.getUtteranceID() + ".wordsAtTime");
+        System.out.print("Locations of -silence-: ");
+        printHits(stats.getSortedHits("-silence-"));
+        System.out.print("Locations of i: ");
+        printHits(stats.getSortedHits("i"));
+
+        // Write lattice to output dir in dot and lattice formats
+        lattice.writeAsDot(outputDir + slash + lattice.getUtteranceID() + ".dot");
+        String latticeOutputFilename = outputDir + slash + lattice.getUtteranceID() + ".lattice";
+        if( latticeOutputFilename.equals(latticeFilename) ) {
+            throw new IllegalArgumentException("Output directory must not be the same as the input directory");
         }
+        lattice.saveAsFile(latticeOutputFilename);
+
+        return new UtteranceResult(lattice.getUtteranceID(), WER, numPaths, density);
+    }
+
+    // restoredReport
+    // Preconditions:
+    //     - result was read back from the checkpoint journal
+    // Post-conditions
+    //     - Returns the summary printed in place of the full report for an
+    //       utterance that an earlier run already finished
+    static String restoredReport(UtteranceResult result) {
+        return "\nUtterance " + result.getUtteranceID() + "\n"
+            + "Restored from checkpoint\n"
+            + "WER : " + new java.text.DecimalFormat("0.000").format(result.getWER()) + "\n"
+            + "Number of unique paths: " + result.getNumPaths() + "\n"
+            + "Lattice density: " + new java.text.DecimalFormat("0.000").format(result.getDensity()) + "\n";
+    }
+
+    private static String readReference(String refFilename) throws java.io.FileNotFoundException {
+        java.util.Scanner refInput = new java.util.Scanner(new java.io.File(refFilename));
+        String reference = "";
         if( refInput.hasNext() ) {
-            System.out.println("Reference: " + refInput.nextLine());
-        } else {
-            System.out.println("Reference: ");
+            reference = refInput.nextLine();
+        }
+        refInput.close();
+        return reference;
+    }
+
+    private static void printHits(double[] hits) {
+        for( double midpoint : hits ) {
+            System.out.print(String.format("%.2f", midpoint) + " ");
         }
         return;
     }
 
-    private static void printWordSet(java.util.HashSet<String> words, String outFilename) {
+    private static void printWordSet(java.util.HashSet<String> words, String outFilename)
+            throws java.io.FileNotFoundException {
 		if( words == null ) {
 			return;
 		}
-        java.io.PrintStream output = null;
+        java.io.PrintStream output = new java.io.PrintStream(outFilename);
         try {
-            output = new java.io.PrintStream(outFilename);
-        } catch( java.io.FileNotFoundException e ) {
-            System.err.println("Error: Unable to open file " + outFilename + " for writing");
-            System.exit(1);
-        }
-        for( String w : words ) {
-            output.println(w);
+            for( String w : words ) {
+                output.println(w);
+            }
+        } finally {
+            output.close();
         }
         return;
     }
@@ -0,0 +1,71 @@
+/*
+ * UtteranceResult.java
+ *
+ * Defines a new "UtteranceResult" type, which stores what a batch run
+ * needs to remember about one decoded utterance: enough to rebuild the
+ * Avg WER and reprint its summary without opening the lattice again
+ *
+ * Note that the UtteranceResult type is immutable: after the fields are
+ * initialized in the constructor, they cannot be modified.
+ *
+ */
+
+public class UtteranceResult {
+    private String utteranceID;           // The lattice's utterance ID
+    private double WER;                   // WER of the best hypothesis
+    private java.math.BigInteger numPaths; // Number of unique paths through the lattice
+    private double density;               // Lattice density
+
+    // Constructor
+
+    // UtteranceResult
+    // Preconditions:
+    //     - utteranceID, WER, numPaths and density describe one decoded utterance
+    // Post-conditions
+    //     - The fields are set to the corresponding arguments
+    public UtteranceResult(String utteranceID, double WER, java.math.BigInteger numPaths, double density) {
+        this.utteranceID = utteranceID;
+        this.WER = WER;
+        this.numPaths = numPaths;
+        this.density = density;
+        return;
+    }
+
+    // Accessors
+
+    // getUtteranceID
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Return's this.utteranceID
+    public String getUtteranceID() {
+        return this.utteranceID;
+    }
+
+    // getWER
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Return's this.WER
+    public double getWER() {
+        return this.WER;
+    }
+
+    // getNumPaths
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Return's this.numPaths
+    public java.math.BigInteger getNumPaths() {
+        return this.numPaths;
+    }
+
+    // getDensity
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Return's this.density
+    public double getDensity() {
+        return this.density;
+    }
+}